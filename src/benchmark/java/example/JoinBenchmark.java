@@ -0,0 +1,46 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//example.join over lists of increasing size
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    private final Join join = new Join();
+    private List<String> strings;
+
+    @Setup
+    public void setUp() {
+        strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add("value" + i);
+        }
+    }
+
+    @Benchmark
+    public String join() {
+        return join.join(strings, ",");
+    }
+}
@@ -0,0 +1,266 @@
+package example;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.IntFunction;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.harness.ServerControls;
+import org.neo4j.harness.TestServerBuilders;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * End-to-end load benchmark of the regression and search procedures on an
+ * embedded test server.
+ *
+ * It generates a synthetic graph, then calls simpleRegression,
+ * customRegression, updateRegression and example.search repeatedly. Each
+ * procedure gets warmup calls first, which are not measured. For every
+ * procedure it reports:
+ * - throughput, in calls and entities per second;
+ * - latency percentiles;
+ * - the peak heap used while the procedure ran, summed over the heap pools'
+ *   own peaks, so an upper bound;
+ * - the transaction log bytes the procedure wrote.
+ * Results are written as JSON.
+ *
+ * The graph has `entities` nodes spread uniformly over `labels` labels named
+ * Point0, Point1 and so on. Every node has an x value drawn from a uniform or
+ * normal distribution. A y value follows from y = 3x + 2 plus noise, except on
+ * a fraction `unknownFraction` of the nodes, which the regressions predict
+ * instead. Every node also gets a bucket number, so updateRegression can
+ * remove and add back one bucket per call. `indexed` nodes of Point0 get a
+ * name that is added to its full-text index for the searches.
+ *
+ * Options are given as key=value arguments, see {@link #DEFAULTS}. Run it with
+ *
+ *     mvn -P benchmarks -DskipTests test-compile exec:exec@load -Dload.args="entities=1000000"
+ *
+ * Everything runs in this JVM against a store in a temporary directory, so no
+ * network or external server is needed.
+ */
+public class LoadBenchmark {
+
+    static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("entities", "1000000");
+        DEFAULTS.put("labels", "1");
+        DEFAULTS.put("distribution", "uniform");
+        DEFAULTS.put("unknownFraction", "0.1");
+        DEFAULTS.put("buckets", "100");
+        DEFAULTS.put("indexed", "10000");
+        DEFAULTS.put("warmup", "1");
+        DEFAULTS.put("iterations", "5");
+        DEFAULTS.put("batchSize", "50000");
+        DEFAULTS.put("seed", "42");
+        DEFAULTS.put("output", "target/load-result.json");
+    }
+
+    private final Map<String, String> options;
+    private final GraphDatabaseService db;
+    private final File storeDir;
+
+    private LoadBenchmark(Map<String, String> options, GraphDatabaseService db) {
+        this.options = options;
+        this.db = db;
+        this.storeDir = ((GraphDatabaseAPI) db).getStoreDir();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0 || !DEFAULTS.containsKey(arg.substring(0, split))) {
+                throw new IllegalArgumentException("unknown option " + arg + ", known options are " + DEFAULTS.keySet());
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        //keep every transaction log so the bytes written by a procedure can be measured
+        try (ServerControls server = TestServerBuilders.newInProcessBuilder()
+                .withConfig("dbms.tx_log.rotation.retention_policy", "true")
+                .withProcedure(LinearRegression.class)
+                .withProcedure(FullTextIndex.class)
+                .newServer()) {
+            LoadBenchmark benchmark = new LoadBenchmark(options, server.graph());
+            String json = benchmark.run();
+            File output = new File(options.get("output"));
+            if (output.getParentFile() != null) output.getParentFile().mkdirs();
+            Files.write(output.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            System.out.println(json);
+        }
+    }
+
+    private String run() {
+        long generateStart = System.nanoTime();
+        generate();
+        double generateSeconds = (System.nanoTime() - generateStart) / 1e9;
+
+        long entities = count("MATCH (n:Point0) RETURN count(n) as count");
+        long known = count("MATCH (n:Point0) WHERE exists(n.y) RETURN count(n) as count");
+        int buckets = intOption("buckets");
+
+        db.execute("CALL example.customRegression('MATCH (n:Point0) WHERE exists(n.y) RETURN n.x, n.y', '', " +
+                "'predicted', 0)").close();
+
+        List<String> results = new ArrayList<>();
+        results.add(measure("simpleRegression", entities, i ->
+                "CALL example.simpleRegression('Point0', 'x', 'y', 'predicted', 'node')"));
+        results.add(measure("customRegression", entities, i ->
+                "CALL example.customRegression('MATCH (n:Point0) WHERE exists(n.y) RETURN n.x, n.y', " +
+                        "'MATCH (n:Point0) WHERE NOT exists(n.y) RETURN n, n.x', 'predicted', " + (i + 1) + ")"));
+        //removes one bucket of known points and adds it back, so the model stays the same between calls
+        results.add(measure("updateRegression", known / buckets, i -> {
+            String bucket = "MATCH (n:Point0 {bucket: " + (i % buckets) + "}) WHERE exists(n.y) RETURN n.x, n.y";
+            return "CALL example.updateRegression('" + bucket + "', '" + bucket + "', '', 'predicted', 0)";
+        }));
+        results.add(measure("search", 1, i -> "CALL example.search('Point0', 'name:name" + (i % 10) + "*')"));
+
+        return String.format(Locale.ROOT, "{\"options\": %s, \"generateSeconds\": %.3f, \"entities\": %d, " +
+                "\"procedures\": [%s]}", json(options), generateSeconds, entities, String.join(", ", results));
+    }
+
+    //creates the nodes in batches, each in its own transaction, then indexes the named ones
+    private void generate() {
+        long entities = Long.parseLong(options.get("entities"));
+        int batchSize = intOption("batchSize");
+        int buckets = intOption("buckets");
+        long indexed = Long.parseLong(options.get("indexed"));
+        double unknownFraction = Double.parseDouble(options.get("unknownFraction"));
+        boolean normal = options.get("distribution").equals("normal");
+        Label[] labels = new Label[intOption("labels")];
+        for (int i = 0; i < labels.length; i++) labels[i] = Label.label("Point" + i);
+
+        SplittableRandom random = new SplittableRandom(Long.parseLong(options.get("seed")));
+        List<Long> named = new ArrayList<>();
+        for (long created = 0; created < entities; ) {
+            try (Transaction tx = db.beginTx()) {
+                for (int i = 0; i < batchSize && created < entities; i++, created++) {
+                    Label label = labels[random.nextInt(labels.length)];
+                    Node node = db.createNode(label);
+                    double x = normal ? 50 + 15 * gaussian(random) : random.nextDouble(0, 100);
+                    node.setProperty("x", x);
+                    if (random.nextDouble() >= unknownFraction) {
+                        node.setProperty("y", 3 * x + 2 + random.nextDouble(-5, 5));
+                    }
+                    node.setProperty("bucket", created % buckets);
+                    if (label.equals(labels[0]) && named.size() < indexed) {
+                        node.setProperty("name", "name" + named.size());
+                        named.add(node.getId());
+                    }
+                }
+                tx.success();
+            }
+        }
+        for (int from = 0; from < named.size(); from += batchSize) {
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("ids", named.subList(from, Math.min(from + batchSize, named.size())));
+            db.execute("UNWIND $ids AS id CALL example.index(id, ['name']) RETURN count(*)", parameters).close();
+        }
+    }
+
+    /* Calls the procedure warmup times, then iterations times while timing every call, and reports the results as a
+    JSON object. entities is the number of entities a call processes, for the throughput in entities per second.
+     */
+    private String measure(String name, long entities, IntFunction<String> query) {
+        int warmup = intOption("warmup");
+        int iterations = intOption("iterations");
+        for (int i = 0; i < warmup; i++) {
+            consume(query.apply(i));
+        }
+
+        List<MemoryPoolMXBean> heap = heapPools();
+        heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+        long logBytes = transactionLogBytes();
+        long[] latencies = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            consume(query.apply(warmup + i));
+            latencies[i] = System.nanoTime() - start;
+        }
+        long loggedBytes = transactionLogBytes() - logBytes;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heap) peakHeap += pool.getPeakUsage().getUsed();
+
+        long total = Arrays.stream(latencies).sum();
+        Arrays.sort(latencies);
+        double seconds = total / 1e9;
+        return String.format(Locale.ROOT, "{\"procedure\": \"%s\", \"iterations\": %d, \"callsPerSecond\": %.3f, " +
+                        "\"entitiesPerSecond\": %.1f, \"latencyMillis\": {\"p50\": %.3f, \"p90\": %.3f, " +
+                        "\"p99\": %.3f, \"max\": %.3f}, \"peakHeapBytes\": %d, \"transactionLogBytes\": %d}",
+                name, iterations, iterations / seconds, entities * iterations / seconds,
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                latencies[latencies.length - 1] / 1e6, peakHeap, loggedBytes);
+    }
+
+    private void consume(String query) {
+        try (Result result = db.execute(query)) {
+            while (result.hasNext()) result.next();
+        }
+    }
+
+    private long count(String query) {
+        try (Result result = db.execute(query)) {
+            return ((Number) result.next().get("count")).longValue();
+        }
+    }
+
+    //bytes of all transaction log files of the store, which are never pruned while the benchmark runs
+    private long transactionLogBytes() {
+        File[] logs = storeDir.listFiles((dir, file) -> file.startsWith("neostore.transaction.db"));
+        long bytes = 0;
+        if (logs != null) {
+            for (File log : logs) bytes += log.length();
+        }
+        return bytes;
+    }
+
+    private int intOption(String key) {
+        return Integer.parseInt(options.get(key));
+    }
+
+    //nearest-rank percentile of sorted latencies, in milliseconds
+    private static double percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) heap.add(pool);
+        }
+        return heap;
+    }
+
+    private static double gaussian(SplittableRandom random) {
+        //Box-Muller, SplittableRandom has no nextGaussian
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    private static String json(Map<String, String> options) {
+        List<String> fields = new ArrayList<>();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            fields.add("\"" + option.getKey() + "\": \"" + option.getValue().replace("\\", "\\\\")
+                    .replace("\"", "\\\"") + "\"");
+        }
+        return "{" + String.join(", ", fields) + "}";
+    }
+}
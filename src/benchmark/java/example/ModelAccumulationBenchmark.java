@@ -0,0 +1,80 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of feeding points into a model. rows does the per row work of
+ * addValuesToModel on rows shaped like Cypher results: two map lookups, type
+ * checks and unboxing before the point reaches the model. primitives feeds the
+ * same points from arrays, as the entity scan does once properties are read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelAccumulationBenchmark {
+
+    @Param({"1000", "100000"})
+    public int points;
+
+    private double[] xs;
+    private double[] ys;
+    private List<Map<String, Object>> rows;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        xs = new double[points];
+        ys = new double[points];
+        rows = new ArrayList<>(points);
+        for (int i = 0; i < points; i++) {
+            xs[i] = random.nextDouble(0, 100);
+            ys[i] = 3 * xs[i] + 2 + random.nextDouble(-1, 1);
+            Map<String, Object> row = new HashMap<>();
+            row.put("x", xs[i]);
+            row.put("y", ys[i]);
+            rows.add(row);
+        }
+    }
+
+    @Benchmark
+    public double primitives() {
+        SimpleLinearModel model = new SimpleLinearModel();
+        for (int i = 0; i < xs.length; i++) {
+            model.addData(xs[i], ys[i]);
+        }
+        return model.getSlope();
+    }
+
+    @Benchmark
+    public double rows() {
+        SimpleLinearModel model = new SimpleLinearModel();
+        for (Map<String, Object> row : rows) {
+            Object x = row.get("x");
+            Object y = row.get("y");
+            if (x instanceof Number && y instanceof Number) {
+                model.addData(((Number) x).doubleValue(), ((Number) y).doubleValue());
+            }
+        }
+        return model.getSlope();
+    }
+}
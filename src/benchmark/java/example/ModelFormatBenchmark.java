@@ -0,0 +1,60 @@
+package example;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip of a stored model through {@link ModelFormat}, as done every
+ * time a model is written to or read from its LinReg node. The multiple
+ * regression model grows with the square of its features.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelFormatBenchmark {
+
+    @Param({"2", "8", "32"})
+    public int features;
+
+    private SimpleLinearModel simple;
+    private MultipleLinearModel multiple;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        simple = new SimpleLinearModel();
+        multiple = new MultipleLinearModel(features);
+        double[] x = new double[features];
+        for (int i = 0; i < 1000; i++) {
+            for (int j = 0; j < features; j++) x[j] = random.nextDouble(0, 100);
+            double y = random.nextDouble(0, 100);
+            simple.addData(x[0], y);
+            multiple.addData(x, y);
+        }
+    }
+
+    @Benchmark
+    public SimpleLinearModel simpleRoundTrip() {
+        return ModelFormat.readSimple(ModelFormat.write(simple));
+    }
+
+    @Benchmark
+    public MultipleLinearModel multipleRoundTrip() {
+        return ModelFormat.readMultiple(ModelFormat.write(multiple));
+    }
+}
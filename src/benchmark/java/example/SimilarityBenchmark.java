@@ -0,0 +1,51 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//example.cosine over vectors of increasing size, passed as boxed lists as Cypher does
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimilarityBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    private final Similarity similarity = new Similarity();
+    private List<Double> a;
+    private List<Double> b;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        a = new ArrayList<>(size);
+        b = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            a.add(random.nextDouble(0, 5));
+            b.add(random.nextDouble(0, 5));
+        }
+    }
+
+    @Benchmark
+    public Double cosine() {
+        return similarity.cosine(a, b);
+    }
+}
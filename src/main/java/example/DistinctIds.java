@@ -0,0 +1,24 @@
+package example;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Remembers which entities a query has returned, so that rows repeating an
+ * entity can be dropped without keeping the rows themselves. Nodes and
+ * relationships have separate id spaces and get a bitmap each; plain numbers
+ * are taken as node ids.
+ */
+final class DistinctIds {
+
+    private final IdBitmap nodes = new IdBitmap();
+    private final IdBitmap relationships = new IdBitmap();
+
+    //true the first time an entity or id is seen
+    boolean firstOccurrence(Object id) {
+        if (id instanceof Relationship) return relationships.add(((Relationship) id).getId());
+        if (id instanceof Node) return nodes.add(((Node) id).getId());
+        if (id instanceof Number) return nodes.add(((Number) id).longValue());
+        throw new RuntimeException("with distinct, the third column of the query must return an entity or its id");
+    }
+}
@@ -0,0 +1,27 @@
+package example;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list view over a double array. Values are only boxed when an
+ * element is read, so results can be computed and returned as primitives.
+ */
+final class DoubleList extends AbstractList<Double> implements RandomAccess {
+
+    private final double[] values;
+
+    DoubleList(double[] values) {
+        this.values = values;
+    }
+
+    @Override
+    public Double get(int index) {
+        return values[index];
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+}
@@ -0,0 +1,356 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.Iterators;
+
+/**
+ * Walks the entities a regression is built from and sorts each one into a
+ * known point (numeric x and y) or an unknown point (numeric x, no y).
+ *
+ * Nodes are found through the label scan store rather than by filtering every
+ * node in the graph, so the cost of a scan grows with the size of the label.
+ * Relationships are read straight from the relationship store, so each one is
+ * visited exactly once and nothing has to be remembered to drop duplicates.
+ * Neo4j 3.3 keeps no index of relationships by type, so this walks every
+ * relationship in the store and a scan costs as much for a rare type as for
+ * the most common one.
+ * Both properties of an entity are loaded together in a single read.
+ *
+ * A scan can be split across worker threads: the calling thread walks the
+ * label or type and hands out batches of ids, and each worker reads the
+ * properties in its own transaction and feeds its own {@link Visitor}.
+ */
+final class EntityScan {
+
+    /**
+     * Receives the points found by a scan. Entities without a numeric
+     * independent value, or with a non-numeric dependent value, are skipped
+     * and only reported to rejected.
+     */
+    interface Visitor {
+        void known(Entity entity, double x, double y);
+
+        void unknown(Entity entity, double x);
+
+        default void rejected(Entity entity) {
+        }
+    }
+
+    /**
+     * Receives the points found by a scan over several independent variables. An
+     * entity is only visited if all of them are numeric. The feature array is
+     * reused between calls.
+     */
+    interface FeatureVisitor {
+        void known(Entity entity, double[] x, double y);
+
+        void unknown(Entity entity, double[] x);
+    }
+
+    /**
+     * Receives the points found by a scan that fits one model per value of a
+     * group property. Entities without a group value, or with a list as group
+     * value, are skipped.
+     */
+    interface GroupVisitor {
+        void known(Entity entity, Object group, double x, double y);
+
+        void unknown(Entity entity, Object group, double x);
+    }
+
+    /**
+     * Visitor of a sampled scan. Every entity is offered to sampled first and
+     * only read if it is picked, and the scan ends early once done is true.
+     */
+    interface Sampler extends Visitor {
+        boolean sampled(Entity entity);
+
+        boolean done();
+    }
+
+    //number of ids handed to a worker at a time
+    static final int BATCH_SIZE = 10_000;
+
+    //marks the end of the scan for a worker
+    private static final long[] DONE = new long[0];
+
+    private EntityScan() {
+    }
+
+    //scans the nodes or relationships named by dataSource on the calling thread
+    static void scan(GraphDatabaseService db, String dataSource, String label, String indVar, String depVar,
+                     Visitor visitor) {
+        forEachEntity(db, dataSource, label, indVar, entity -> visit(entity, indVar, depVar, visitor));
+    }
+
+    //scans on the calling thread, reading only the entities the sampler picks, until it has seen enough
+    static void sample(GraphDatabaseService db, String dataSource, String label, String indVar, String depVar,
+                       Sampler sampler) {
+        try (ResourceIterator<Entity> entities = entities(db, dataSource, label, indVar)) {
+            while (entities.hasNext() && !sampler.done()) {
+                Entity entity = entities.next();
+                if (sampler.sampled(entity)) visit(entity, indVar, depVar, sampler);
+            }
+        }
+    }
+
+    /* Scans the nodes or relationships named by dataSource with up to concurrency workers, each feeding its own
+    visitor from the supplier. Returns the visitors so their results can be merged. With a concurrency of 1 the
+    scan runs on the calling thread.
+     */
+    static <V extends Visitor> List<V> scan(GraphDatabaseService db, String dataSource, String label, String indVar,
+                                            String depVar, int concurrency, Supplier<V> visitors) {
+        return forEachEntity(db, dataSource, label, indVar, concurrency, visitors,
+                (entity, visitor) -> visit(entity, indVar, depVar, visitor));
+    }
+
+    //same as scan, for regressions with more than one independent variable
+    static <V extends FeatureVisitor> List<V> scanFeatures(GraphDatabaseService db, String dataSource, String label,
+                                                           String[] indVars, String depVar, int concurrency,
+                                                           Supplier<V> visitors) {
+        String[] keys = Arrays.copyOf(indVars, indVars.length + 1);
+        keys[indVars.length] = depVar;
+        List<FeatureReader<V>> readers = forEachEntity(db, dataSource, label, indVars[0], concurrency,
+                () -> new FeatureReader<>(visitors.get(), indVars.length),
+                (entity, reader) -> visitFeatures(entity, keys, reader.features, reader.visitor));
+
+        List<V> results = new ArrayList<>(readers.size());
+        for (FeatureReader<V> reader : readers) {
+            results.add(reader.visitor);
+        }
+        return results;
+    }
+
+    //same as scan, handing each point to the visitor together with the entity's value of groupKey
+    static <V extends GroupVisitor> List<V> scanGroups(GraphDatabaseService db, String dataSource, String label,
+                                                       String groupKey, String indVar, String depVar,
+                                                       int concurrency, Supplier<V> visitors) {
+        return forEachEntity(db, dataSource, label, indVar, concurrency, visitors,
+                (entity, visitor) -> visitGroup(entity, groupKey, indVar, depVar, visitor));
+    }
+
+    //reads the independent variables of one entity, returns false if any of them is missing or not numeric
+    static boolean readFeatures(Entity entity, String[] indVars, double[] x) {
+        Map<String, Object> properties = entity.getProperties(indVars);
+        for (int i = 0; i < indVars.length; i++) {
+            Object value = properties.get(indVars[i]);
+            if (!(value instanceof Number)) return false;
+            x[i] = ((Number) value).doubleValue();
+        }
+        return true;
+    }
+
+    /* Hands every entity to the visitor of the worker that reads it. The calling thread walks the label or type
+    and queues batches of ids, each worker reads its batches in its own transaction.
+     */
+    private static <V> List<V> forEachEntity(GraphDatabaseService db, String dataSource, String label, String indVar,
+                                             int concurrency, Supplier<V> visitors, BiConsumer<Entity, V> read) {
+        if (concurrency <= 1) {
+            V visitor = visitors.get();
+            forEachEntity(db, dataSource, label, indVar, entity -> read.accept(entity, visitor));
+            return Collections.singletonList(visitor);
+        }
+
+        BlockingQueue<long[]> batches = new ArrayBlockingQueue<>(concurrency * 2);
+        List<Future<V>> workers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            workers.add(Pools.DEFAULT.submit(() -> {
+                V visitor = visitors.get();
+                for (long[] batch = batches.take(); batch != DONE; batch = batches.take()) {
+                    try (Transaction tx = db.beginTx()) {
+                        for (long id : batch) {
+                            read.accept(entity(db, dataSource, id), visitor);
+                        }
+                        tx.success();
+                    }
+                }
+                return visitor;
+            }));
+        }
+
+        boolean scanned = false;
+        try {
+            long[] batch = new long[BATCH_SIZE];
+            int[] size = {0};
+            forEachEntity(db, dataSource, label, indVar, entity -> {
+                batch[size[0]++] = entity.getId();
+                if (size[0] == BATCH_SIZE) {
+                    handOver(batches, workers, batch.clone());
+                    size[0] = 0;
+                }
+            });
+            if (size[0] > 0) handOver(batches, workers, Arrays.copyOf(batch, size[0]));
+            for (int i = 0; i < concurrency; i++) handOver(batches, workers, DONE);
+            scanned = true;
+        } finally {
+            if (!scanned) {
+                //release the workers, they would otherwise wait for batches forever
+                batches.clear();
+                for (int i = 0; i < concurrency; i++) batches.offer(DONE);
+            }
+        }
+
+        List<V> results = new ArrayList<>(concurrency);
+        for (Future<V> worker : workers) {
+            results.add(Pools.await(worker));
+        }
+        return results;
+    }
+
+    //fails unless dataSource names one of the two kinds of entity a regression can be built from
+    static void checkDataSource(String dataSource) {
+        if (!(dataSource.equals("node")||dataSource.equals("relationship"))) {
+            throw new RuntimeException("Invalid dataSource (acceptable values are 'node' or 'relationship')");
+        }
+    }
+
+    //looks up the node or relationship for an id collected during a scan
+    static Entity entity(GraphDatabaseService db, String dataSource, long id) {
+        return dataSource.equals("node") ? db.getNodeById(id) : db.getRelationshipById(id);
+    }
+
+    //visits every node with the label, or every relationship with the type, exactly once
+    private static void forEachEntity(GraphDatabaseService db, String dataSource, String label, String indVar,
+                                      Consumer<Entity> action) {
+        try (ResourceIterator<Entity> entities = entities(db, dataSource, label, indVar)) {
+            while (entities.hasNext()) {
+                action.accept(entities.next());
+            }
+        }
+    }
+
+    //number of nodes with the label or relationships with the type, read from the count store
+    static long count(GraphDatabaseService db, String dataSource, String label) {
+        String name = "`" + label.replace("`", "``") + "`";
+        String query = dataSource.equals("node") ? "MATCH (n:" + name + ") RETURN count(n) as count"
+                : "MATCH ()-[r:" + name + "]->() RETURN count(r) as count";
+        try (Result result = db.execute(query)) {
+            return ((Number) result.next().get("count")).longValue();
+        }
+    }
+
+    //every node with the label, or every relationship with the type, read lazily as the iterator advances
+    static ResourceIterator<Entity> entities(GraphDatabaseService db, String dataSource, String label, String indVar) {
+        //if the property key was never created no entity can have it, so there is nothing to scan
+        if (!propertyKeyExists(db, indVar)) return Iterators.emptyResourceIterator();
+
+        if (dataSource.equals("node")) {
+            return db.findNodes(Label.label(label)).map(node -> (Entity) node);
+        }
+        if (!relationshipTypeExists(db, label)) return Iterators.emptyResourceIterator();
+
+        RelationshipType relationshipType = RelationshipType.withName(label);
+        ResourceIterator<Relationship> relationships = db.getAllRelationships().iterator();
+        Iterator<Relationship> typed = Iterators.filter(relationship -> relationship.isType(relationshipType),
+                relationships);
+        return Iterators.resourceIterator(Iterators.map(relationship -> (Entity) relationship, typed), relationships);
+    }
+
+    //queues a batch for the workers, failing fast if a worker has died and can no longer take it
+    private static <V> void handOver(BlockingQueue<long[]> batches, List<Future<V>> workers, long[] batch) {
+        try {
+            while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                for (Future<V> worker : workers) {
+                    if (worker.isDone()) Pools.await(worker);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while scanning", e);
+        }
+    }
+
+    private static void visit(Entity entity, String indVar, String depVar, Visitor visitor) {
+        Map<String, Object> properties = entity.getProperties(indVar, depVar);
+        Object x = properties.get(indVar);
+        if (!(x instanceof Number)) {
+            visitor.rejected(entity);
+            return;
+        }
+
+        Object y = properties.get(depVar);
+        if (y == null) {
+            visitor.unknown(entity, ((Number) x).doubleValue());
+        } else if (y instanceof Number) {
+            visitor.known(entity, ((Number) x).doubleValue(), ((Number) y).doubleValue());
+        } else {
+            visitor.rejected(entity);
+        }
+    }
+
+    private static void visitGroup(Entity entity, String groupKey, String indVar, String depVar, GroupVisitor visitor) {
+        Map<String, Object> properties = entity.getProperties(groupKey, indVar, depVar);
+        Object group = properties.get(groupKey);
+        Object x = properties.get(indVar);
+        if (group == null || group.getClass().isArray() || !(x instanceof Number)) return;
+
+        Object y = properties.get(depVar);
+        if (y == null) {
+            visitor.unknown(entity, group, ((Number) x).doubleValue());
+        } else if (y instanceof Number) {
+            visitor.known(entity, group, ((Number) x).doubleValue(), ((Number) y).doubleValue());
+        }
+    }
+
+    //a feature visitor together with the array its worker reads features into
+    private static final class FeatureReader<V> {
+        final V visitor;
+        final double[] features;
+
+        FeatureReader(V visitor, int size) {
+            this.visitor = visitor;
+            this.features = new double[size];
+        }
+    }
+
+    private static <V extends FeatureVisitor> void visitFeatures(Entity entity, String[] keys, double[] x, V visitor) {
+        Map<String, Object> properties = entity.getProperties(keys);
+        for (int i = 0; i < x.length; i++) {
+            Object value = properties.get(keys[i]);
+            if (!(value instanceof Number)) return;
+            x[i] = ((Number) value).doubleValue();
+        }
+
+        Object y = properties.get(keys[x.length]);
+        if (y == null) {
+            visitor.unknown(entity, x);
+        } else if (y instanceof Number) {
+            visitor.known(entity, x, ((Number) y).doubleValue());
+        }
+    }
+
+    private static boolean propertyKeyExists(GraphDatabaseService db, String key) {
+        for (String existing : db.getAllPropertyKeys()) {
+            if (existing.equals(key)) return true;
+        }
+        return false;
+    }
+
+    private static boolean relationshipTypeExists(GraphDatabaseService db, String type) {
+        for (RelationshipType existing : db.getAllRelationshipTypes()) {
+            if (existing.name().equals(type)) return true;
+        }
+        return false;
+    }
+}
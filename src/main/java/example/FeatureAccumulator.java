@@ -0,0 +1,67 @@
+package example;
+
+import java.util.Arrays;
+
+import org.neo4j.graphdb.Entity;
+
+/**
+ * Scan visitor for regressions over several independent variables. Known points
+ * go into a {@link MultipleLinearModel}; for unknown points only the entity id
+ * is kept, since holding on to every feature vector would make memory grow
+ * with the number of variables times the number of entities.
+ *
+ * The variables read are expanded into the features the model is fitted on,
+ * see {@link FeatureExpansion}. Points whose features can't be derived are
+ * left out.
+ */
+final class FeatureAccumulator implements EntityScan.FeatureVisitor {
+
+    final MultipleLinearModel model;
+    private final FeatureExpansion expansion;
+    private final double[] features;
+    private long[] unknownIds = new long[64];
+    private int unknownCount;
+
+    FeatureAccumulator(int variables, FeatureExpansion expansion) {
+        this.expansion = expansion;
+        this.features = new double[expansion.width(variables)];
+        this.model = new MultipleLinearModel(features.length);
+    }
+
+    @Override
+    public void known(Entity entity, double[] x, double y) {
+        if (expansion.isIdentity()) {
+            model.addData(x, y);
+        } else if (expansion.expand(x, features)) {
+            model.addData(features, y);
+        }
+    }
+
+    @Override
+    public void unknown(Entity entity, double[] x) {
+        if (expansion.isIdentity() || expansion.expand(x, features)) addUnknown(entity.getId());
+    }
+
+    //adds the points gathered by another accumulator to this one
+    void merge(FeatureAccumulator other) {
+        model.append(other.model);
+        for (int i = 0; i < other.unknownCount; i++) {
+            addUnknown(other.unknownIds[i]);
+        }
+    }
+
+    int unknownCount() {
+        return unknownCount;
+    }
+
+    long unknownId(int i) {
+        return unknownIds[i];
+    }
+
+    private void addUnknown(long id) {
+        if (unknownCount == unknownIds.length) {
+            unknownIds = Arrays.copyOf(unknownIds, unknownCount * 2);
+        }
+        unknownIds[unknownCount++] = id;
+    }
+}
@@ -0,0 +1,77 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Derived features a regression is fitted on, computed from the independent
+ * variables as each entity is read. Every variable x contributes its powers
+ * x, x^2 up to x^degree, followed by log(x) and exp(x) if those transforms
+ * are asked for. Nothing derived is ever stored on the entities.
+ *
+ * The expansion with degree 1 and no transforms leaves the variables as they
+ * are.
+ */
+final class FeatureExpansion {
+
+    static final String LOG = "log";
+    static final String EXP = "exp";
+
+    private final int degree;
+    private final boolean log;
+    private final boolean exp;
+
+    FeatureExpansion(int degree, List<String> transforms) {
+        this.degree = degree;
+        this.log = transforms.contains(LOG);
+        this.exp = transforms.contains(EXP);
+    }
+
+    boolean isIdentity() {
+        return degree == 1 && !log && !exp;
+    }
+
+    //number of features derived from the given number of variables
+    int width(int variables) {
+        return variables * (degree + (log ? 1 : 0) + (exp ? 1 : 0));
+    }
+
+    /* Writes the features derived from x into features, which must be width(x.length) long. Returns false if a
+    transform isn't defined for a value, a log of a value that isn't positive or an exp that overflows, and the
+    entity can't be used.
+     */
+    boolean expand(double[] x, double[] features) {
+        int k = 0;
+        for (double value : x) {
+            double power = 1;
+            for (int d = 1; d <= degree; d++) {
+                power *= value;
+                features[k++] = power;
+            }
+            if (log) {
+                if (!(value > 0)) return false;
+                features[k++] = Math.log(value);
+            }
+            if (exp) {
+                double e = Math.exp(value);
+                if (Double.isInfinite(e)) return false;
+                features[k++] = e;
+            }
+        }
+        return true;
+    }
+
+    //names of the derived features in the order of expand, such as x, x^2 and log(x)
+    String[] terms(String[] variables) {
+        List<String> terms = new ArrayList<>();
+        for (String variable : variables) {
+            terms.add(variable);
+            for (int d = 2; d <= degree; d++) {
+                terms.add(variable + "^" + d);
+            }
+            if (log) terms.add(LOG + "(" + variable + ")");
+            if (exp) terms.add(EXP + "(" + variable + ")");
+        }
+        return terms.toArray(new String[0]);
+    }
+}
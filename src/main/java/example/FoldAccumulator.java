@@ -0,0 +1,52 @@
+package example;
+
+import org.neo4j.graphdb.Entity;
+
+/**
+ * Scan visitor for cross-validation. Every known point goes into the model of
+ * its fold, which is picked by hashing the entity id, so the same entity
+ * always lands in the same fold whichever worker reads it.
+ */
+final class FoldAccumulator implements EntityScan.Visitor {
+
+    final SimpleLinearModel[] folds;
+    //unknown points seen, which belong to no fold
+    long unknown;
+    long rejected;
+
+    FoldAccumulator(int k) {
+        folds = new SimpleLinearModel[k];
+        for (int i = 0; i < k; i++) {
+            folds[i] = new SimpleLinearModel();
+        }
+    }
+
+    @Override
+    public void known(Entity entity, double x, double y) {
+        folds[fold(entity.getId(), folds.length)].addData(x, y);
+    }
+
+    @Override
+    public void unknown(Entity entity, double x) {
+        unknown++;
+    }
+
+    @Override
+    public void rejected(Entity entity) {
+        rejected++;
+    }
+
+    void merge(FoldAccumulator other) {
+        unknown += other.unknown;
+        rejected += other.rejected;
+        for (int i = 0; i < folds.length; i++) {
+            folds[i].append(other.folds[i]);
+        }
+    }
+
+    //spreads consecutive ids evenly over the folds
+    static int fold(long id, int k) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) k);
+    }
+}
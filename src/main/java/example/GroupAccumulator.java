@@ -0,0 +1,128 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Entity;
+
+/**
+ * Scan visitor that fits one model per group value. Every group value is
+ * numbered the first time it is seen, and models and unknown points refer to
+ * groups by that number. Integral group values are numbered through a
+ * {@link LongIntMap}, so the usual case of numeric ids costs no boxing per
+ * entity; strings and other values go through a map.
+ */
+final class GroupAccumulator implements EntityScan.GroupVisitor {
+
+    private final LongIntMap integralGroups = new LongIntMap();
+    private final Map<Object, Integer> otherGroups = new HashMap<>();
+    private final List<Object> keys = new ArrayList<>();
+    private SimpleLinearModel[] models = new SimpleLinearModel[16];
+
+    private final boolean keepUnknown;
+    private long[] unknownIds = new long[64];
+    private double[] unknownXs = new double[64];
+    private int[] unknownGroups = new int[64];
+    private int unknownCount;
+    //unknown points seen, kept or not
+    long unknown;
+
+    GroupAccumulator(boolean keepUnknown) {
+        this.keepUnknown = keepUnknown;
+    }
+
+    @Override
+    public void known(Entity entity, Object group, double x, double y) {
+        models[group(group)].addData(x, y);
+    }
+
+    @Override
+    public void unknown(Entity entity, Object group, double x) {
+        int index = group(group);
+        unknown++;
+        if (keepUnknown) addUnknown(entity.getId(), x, index);
+    }
+
+    //adds the groups and points gathered by another accumulator to this one
+    void merge(GroupAccumulator other) {
+        unknown += other.unknown;
+        int[] renumbered = new int[other.keys.size()];
+        for (int i = 0; i < renumbered.length; i++) {
+            renumbered[i] = group(other.keys.get(i));
+            models[renumbered[i]].append(other.models[i]);
+        }
+        for (int i = 0; i < other.unknownCount; i++) {
+            addUnknown(other.unknownIds[i], other.unknownXs[i], renumbered[other.unknownGroups[i]]);
+        }
+    }
+
+    int groups() {
+        return keys.size();
+    }
+
+    Object key(int group) {
+        return keys.get(group);
+    }
+
+    SimpleLinearModel model(int group) {
+        return models[group];
+    }
+
+    int unknownCount() {
+        return unknownCount;
+    }
+
+    long unknownId(int i) {
+        return unknownIds[i];
+    }
+
+    double unknownX(int i) {
+        return unknownXs[i];
+    }
+
+    int unknownGroup(int i) {
+        return unknownGroups[i];
+    }
+
+    //the number of a group value, numbering it if it is new
+    private int group(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            long key = ((Number) value).longValue();
+            int index = integralGroups.get(key);
+            if (index == LongIntMap.MISSING) {
+                index = add(value);
+                integralGroups.put(key, index);
+            }
+            return index;
+        }
+        Integer index = otherGroups.get(value);
+        if (index == null) {
+            index = add(value);
+            otherGroups.put(value, index);
+        }
+        return index;
+    }
+
+    private int add(Object value) {
+        int index = keys.size();
+        keys.add(value);
+        if (index == models.length) models = Arrays.copyOf(models, index * 2);
+        models[index] = new SimpleLinearModel();
+        return index;
+    }
+
+    private void addUnknown(long id, double x, int group) {
+        if (unknownCount == unknownIds.length) {
+            unknownIds = Arrays.copyOf(unknownIds, unknownCount * 2);
+            unknownXs = Arrays.copyOf(unknownXs, unknownCount * 2);
+            unknownGroups = Arrays.copyOf(unknownGroups, unknownCount * 2);
+        }
+        unknownIds[unknownCount] = id;
+        unknownXs[unknownCount] = x;
+        unknownGroups[unknownCount] = group;
+        unknownCount++;
+    }
+}
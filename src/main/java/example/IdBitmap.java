@@ -0,0 +1,92 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compressed set of non-negative ids, laid out like a Roaring bitmap. Ids are
+ * split into their high 48 bits, which pick a container, and their low 16
+ * bits, which the container stores. A container holds a sorted array of up to
+ * 4096 values and turns into a plain 65536 bit bitmap beyond that, so sparse
+ * ranges cost 16 bits per id and dense ranges about one bit per id.
+ *
+ * Used to drop repeated rows when a query returns an entity more than once.
+ */
+final class IdBitmap {
+
+    //an array container is never larger than the bitmap it could become
+    private static final int ARRAY_LIMIT = 4096;
+
+    private final LongIntMap containerIndex = new LongIntMap();
+    private final List<Container> containers = new ArrayList<>();
+    private long cardinality;
+
+    //adds the id and returns true, or returns false if it was already there
+    boolean add(long id) {
+        if (id < 0) throw new IllegalArgumentException("ids must not be negative");
+        long high = id >>> 16;
+        int index = containerIndex.get(high);
+        if (index == LongIntMap.MISSING) {
+            index = containers.size();
+            containers.add(new Container());
+            containerIndex.put(high, index);
+        }
+        boolean added = containers.get(index).add((char) id);
+        if (added) cardinality++;
+        return added;
+    }
+
+    boolean contains(long id) {
+        if (id < 0) return false;
+        int index = containerIndex.get(id >>> 16);
+        return index != LongIntMap.MISSING && containers.get(index).contains((char) id);
+    }
+
+    long cardinality() {
+        return cardinality;
+    }
+
+    //the low 16 bits of the ids sharing the same high bits, as a sorted array or as a bitmap
+    private static final class Container {
+        private char[] values = new char[4];
+        private int size;
+        private long[] bits;
+
+        boolean add(char value) {
+            if (bits != null) {
+                long word = bits[value >>> 6];
+                long mask = 1L << value;
+                bits[value >>> 6] = word | mask;
+                return (word & mask) == 0;
+            }
+
+            int position = Arrays.binarySearch(values, 0, size, value);
+            if (position >= 0) return false;
+            if (size == ARRAY_LIMIT) {
+                toBitmap();
+                return add(value);
+            }
+            position = -position - 1;
+            if (size == values.length) values = Arrays.copyOf(values, Math.min(size * 2, ARRAY_LIMIT));
+            System.arraycopy(values, position, values, position + 1, size - position);
+            values[position] = value;
+            size++;
+            return true;
+        }
+
+        boolean contains(char value) {
+            if (bits != null) return (bits[value >>> 6] & (1L << value)) != 0;
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        private void toBitmap() {
+            bits = new long[1 << 10];
+            for (int i = 0; i < size; i++) {
+                bits[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+            size = 0;
+        }
+    }
+}
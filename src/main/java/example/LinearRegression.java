@@ -1,16 +1,21 @@
 package example;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.io.*;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 
 import org.neo4j.graphdb.*;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
-import org.apache.commons.math3.stat.regression.SimpleRegression;
 
 
 
@@ -20,7 +25,8 @@ import org.apache.commons.math3.stat.regression.SimpleRegression;
  * 1. Create a user defined function in which the user manually inputs
  * the slope/intercept parameters obtained through a third
  * party data analysis tool, and then calls this function on the graph
- * to predict unknown values.
+ * to predict unknown values. example.predictBatch and example.predictWithModel predict with a model stored in a
+ * LinReg node instead.
  *
  * 2. Create a user defined procedure in which the user specifies
  * node/relationship type the properties of that entity that will be the x and y values
@@ -35,7 +41,86 @@ import org.apache.commons.math3.stat.regression.SimpleRegression;
  *
  * 4. User defined procedure in which the user provides three queries: one provides data to remove from existing model,
  * one provides data to add to existing model, and one provides entities on which the model should provide updated
- * values. Existing model de-serialized, updated, and re-serialized to be stored on same LinReg node.
+ * values. The remove and add queries are read into a {@link ModelDelta} first, and only then is the stored model
+ * locked, the delta applied and the model written back, in the calling transaction. Concurrent updates of one model
+ * never lose each other's points, and only wait for each other once their queries have been read. Models read from
+ * their node are kept in a cache, see {@link ModelCache}, so repeated updates of the same model skip reading it.
+ *
+ * 5. Same as 2, with any number of independent variables. The model is fit from running sums only, so the data
+ * is streamed once and never held in memory. Powers, logs and exponentials of the variables can be fitted on too,
+ * derived as each entity is read, see {@link FeatureExpansion}.
+ *
+ * 6. Same as 2, fitting one model per value of a group property in a single scan instead of one scan per group.
+ *
+ * 7. Same as 2 over a sliding window of the most recent points by timestamp, kept in memory and updated as new
+ * points are committed.
+ *
+ * example.simpleRegression.sample estimates the model of 2 from a random sample, stopping as soon as its estimates
+ * are precise enough.
+ *
+ * 2 and 3 have read-only variants, example.simpleRegression.stream and example.customRegression.stream, and
+ * example.predict.stream applies a stored model. They stream the predictions as they are computed instead of
+ * storing them, so they run in read transactions and on read replicas.
+ *
+ * The regression procedures take an optional config map as their last argument:
+ *
+ * batchSize - when greater than 0, predicted values are committed in batches of this size on separate
+ * transactions instead of in the calling transaction (default 0). Refused in a transaction that has already changed
+ * data, whose locks the batches would wait for and whose new entities they would not see
+ *
+ * concurrency - number of worker threads that read entities for simpleRegression, each fitting its own partial
+ * model, capped at the number of cores (default 1). Queries passed to customRegression and updateRegression are
+ * consumed on the calling thread. In batch mode it is also the number of batches whose predictions are computed
+ * in parallel while a single writer commits the finished batches
+ *
+ * indVar - customRegression and updateRegression only. When given, mapQuery only needs to return the entities, and
+ * their x values are read from this property. In batch mode each batch is read by the worker that computes its
+ * predictions, so reading, like predicting, runs on concurrency threads instead of the calling thread
+ *
+ * epsilon, relativeEpsilon - when either is given, the value already stored under the new variable name is read
+ * first and the prediction is only written if it differs by more than epsilon and by more than relativeEpsilon times
+ * the stored value. Keeps remapping after a small model update from rewriting every entity (default not set)
+ *
+ * sampleRows, heapBudget, timeBudget, enforceBudget - see example.regression.estimate below. The estimate reads the
+ * first sampleRows entities or rows (default 1000). heapBudget is in bytes (default half the maximum heap, or the
+ * system property example.regression.heapBudget), timeBudget in seconds (default not set)
+ *
+ * live - simpleRegression only. When true, the model is kept current as nodes or relationships of its label gain,
+ * lose or change the independent or dependent property, see {@link LiveModels}. The model is fitted and its LinReg
+ * node committed in a transaction of its own, while transactions changing the label or type wait for it, so it stays
+ * even if the calling transaction rolls back. Set the live property of the LinReg node to false to stop
+ * (default false)
+ *
+ * distinct - customRegression and updateRegression only. When true, the queries that add or remove data must
+ * return the entity, or its id, as third column, and only the first row of every entity is used. The entities
+ * seen are kept in a compressed bitmap, see {@link IdBitmap} (default false)
+ *
+ * degree, transforms - simpleRegression and multipleRegression only. Fit y on the powers of every independent
+ * variable up to degree (default 1), and on its log and/or exp if transforms contains 'log' or 'exp' (default []).
+ * Entities whose variables have no log or exp are left out. simpleRegression then fits and stores a multiple
+ * regression model, which can't be live
+ *
+ * residuals - simpleRegression.stream only. When true, entities with a known y are streamed too, together with the
+ * difference between y and the prediction (default false)
+ *
+ * example.regression.submit runs simpleRegression or customRegression as a background job with batched writes, so
+ * long fits hold no client connection or large transaction, see {@link RegressionJobs}. example.regression.status
+ * and example.regression.cancel follow and stop them.
+ *
+ * example.snapshot.load reads numeric properties of a label or relationship type into a named columnar snapshot in
+ * memory, see {@link Snapshots}. example.snapshot.regression, example.snapshot.crossValidate and
+ * example.snapshot.predict then fit, validate and predict from its columns instead of scanning the store again, until
+ * it is dropped with example.snapshot.drop or evicted.
+ *
+ * example.regression.estimate estimates the rows, heap and time of a regression call before it is made, see
+ * {@link RegressionEstimator}, and checks them against its heapBudget and timeBudget. With enforceBudget:true in
+ * their config, simpleRegression, customRegression and updateRegression make that estimate first and refuse to run
+ * over budget.
+ *
+ * example.regression.metrics reports the counts and per phase timings of recent calls, see {@link RegressionMetrics}.
+ *
+ * Each writing procedure returns one row with the number of predicted values written, the number that failed, the
+ * number of mapped rows that were skipped and the number left unwritten because the stored value was unchanged.
  */
 
 public class LinearRegression {
@@ -65,283 +150,1307 @@ public class LinearRegression {
             " the given label and contain both properties. Then store predicted values under the property name " +
             "'newVarName' for nodes/relationships with the same label and known x but no known y property value. " +
             "Store the linear regression model in a new LinReg node. Use of nodes vs relationships specified with dataSource")
-    public void simpleRegression(@Name("label") String label, @Name("independent variable") String indVar,
+    public Stream<RegressionResult> simpleRegression(@Name("label") String label, @Name("independent variable") String indVar,
                                  @Name("dependent variable") String depVar, @Name("new variable name") String newVarName,
-                                 @Name("data source") String dataSource) {
+                                 @Name("data source") String dataSource,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
 
-        if (!(dataSource.equals("node")||dataSource.equals("relationship"))) {
-             throw new RuntimeException("Invalid dataSource (acceptable values are 'node' or 'relationship')");
+        EntityScan.checkDataSource(dataSource);
+        RegressionConfig configuration = new RegressionConfig(config);
+        PredictionWriter.checkBatches(db, configuration.batchSize());
+        if (configuration.enforceBudget()) {
+            new RegressionEstimator(db, configuration).simple(label, indVar, depVar, dataSource).check();
+        }
+        //a curve over derived features of x is a multiple regression
+        if (!configuration.expansion().isIdentity()) {
+            if (configuration.live()) {
+                throw new RuntimeException("live models can't use degree or transforms");
+            }
+            return multiple("example.simpleRegression", label, Collections.singletonList(indVar), depVar, newVarName,
+                    dataSource, configuration);
         }
 
         Map<String, Object> parameters = new HashMap<>();
         parameters.put("label", label);
         parameters.put("indVar", indVar);
         parameters.put("depVar", depVar);
+        parameters.put("dataSource", dataSource);
+        parameters.put("live", configuration.live());
 
-        //gathers points with known indVar and depVar
-        Result resultKnown;
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start("example.simpleRegression")) {
+            ScanAccumulator scanned;
+            if (configuration.live()) {
+                /* A live model only follows the transactions that commit after it, so it is fitted and committed in a
+                transaction of its own, while transactions changing the label or type wait for it, see LiveModels
+                 */
+                ExecutorService fitter = Pools.newSingleThreadExecutor("live-model-fit");
+                try {
+                    scanned = Pools.await(fitter.submit(() -> LiveModels.forDatabase(db).fit(dataSource, label, () -> {
+                        try (Transaction tx = db.beginTx()) {
+                            ScanAccumulator fitted = scanSimple(label, indVar, depVar, dataSource, configuration, run);
+                            createSimpleModel(fitted.model, parameters, run);
+                            tx.success();
+                            return fitted;
+                        }
+                    })));
+                } finally {
+                    fitter.shutdown();
+                }
+            } else {
+                scanned = scanSimple(label, indVar, depVar, dataSource, configuration, run);
+            }
+            SimpleLinearModel R = scanned.model;
+            PointBuffer unknownValues = scanned.unknown;
 
-        //gathers points with known indVar but no known depVar
-        Result resultUnknown;
+            //predict depVar values
+            run.enter(RegressionMetrics.Phase.WRITE);
+            PredictionWriter writer = new PredictionWriter(db, log, newVarName, R::predict, configuration.batchSize(),
+                    configuration.concurrency())
+                    .skipUnchanged(configuration.epsilon(), configuration.relativeEpsilon());
+            for (int i = 0; i < unknownValues.size(); i++) {
+                writer.write(dataSource, unknownValues.id(i), unknownValues.x(i));
+            }
+            writer.finish();
+            run.written = writer.written();
+            if (!configuration.live()) createSimpleModel(R, parameters, run);
+            run.succeeded();
+            return Stream.of(new RegressionResult(writer));
+        }
+    }
 
-        if (dataSource.equals("node")) {
-            resultKnown = db.execute("MATCH (node) WHERE $label IN labels(node) AND $indVar IN keys(node) AND $depVar IN keys(node) " +
-                    "RETURN DISTINCT node", parameters);
-            resultUnknown = db.execute("MATCH (node) WHERE $label IN labels(node) AND $indVar IN keys(node) AND NOT $depVar IN keys(node) RETURN DISTINCT node", parameters);
+    /* A single pass over the label or relationship type sorts every entity into known or unknown. Known points go
+    straight into a model, the ids and x values of unknown points are kept until the model is built
+     */
+    private ScanAccumulator scanSimple(String label, String indVar, String depVar, String dataSource,
+                                       RegressionConfig configuration, RegressionMetrics.Recorder run) {
+        run.enter(RegressionMetrics.Phase.SCAN);
+        List<ScanAccumulator> partials = EntityScan.scan(db, dataSource, label, indVar, depVar,
+                configuration.concurrency(), ScanAccumulator::new);
+        //the partial models of the workers are merged into one
+        run.enter(RegressionMetrics.Phase.FIT);
+        ScanAccumulator scanned = partials.get(0);
+        for (int i = 1; i < partials.size(); i++) {
+            scanned.merge(partials.get(i));
+        }
+        run.scanned = scanned.model.getN() + scanned.unknown.size() + scanned.rejected;
+        run.rejected = scanned.rejected;
 
-        } else  {
+        if (scanned.model.getN() < 2) {
+            throw new RuntimeException("not enough known values to create a model");
+        }
+        return scanned;
+    }
 
-            resultKnown = db.execute("MATCH () - [r] - () WHERE type(r) = $label AND $indVar IN keys(r) AND $depVar IN keys(r)" +
-                            "RETURN DISTINCT r AS relationship", parameters);
-            resultUnknown = db.execute("MATCH () - [r] - () WHERE type(r) = $label AND $indVar IN keys(r) AND NOT $depVar IN keys(r)" +
-                    "RETURN DISTINCT r as relationship", parameters);
+    //stores the model of simpleRegression in a new LinReg node
+    private void createSimpleModel(SimpleLinearModel R, Map<String, Object> parameters, RegressionMetrics.Recorder run) {
+        run.enter(RegressionMetrics.Phase.WRITE);
+        parameters.put("int", R.getIntercept());
+        parameters.put("slope", R.getSlope());
+        parameters.put("R2", R.getRSquare());
+        ResourceIterator<Entity> modelNode = db.execute("CREATE (n:LinReg {label:$label, indVar:$indVar, depVar:$depVar, rSquare:$R2, " +
+                "intercept:$int, slope:$slope, dataSource:$dataSource, live:$live}) RETURN n", parameters).columnAs("n");
+        Entity n = modelNode.next();
+
+        //store R as property "serializedModel" in the new LinReg node
+        run.enter(RegressionMetrics.Phase.SERIALIZE);
+        byte[] serialized = ModelFormat.write(R);
+        run.bytesSerialized = serialized.length;
+        run.enter(RegressionMetrics.Phase.WRITE);
+        n.setProperty("serializedModel", serialized);
+    }
+
+    //linear regression over several independent variables using node or relationship properties
+    @Procedure(value = "example.multipleRegression", mode = Mode.WRITE)
+    @Description("create a multiple linear regression model using the independent properties in indVars and the dependent " +
+            "property of nodes/relationships that have the given label and contain all of them. Then store predicted values " +
+            "under the property name 'newVarName' for nodes/relationships with the same label and known independent but no " +
+            "known dependent values. Store the model in a new LinReg node. Use of nodes vs relationships specified with dataSource")
+    public Stream<RegressionResult> multipleRegression(@Name("label") String label, @Name("independent variables") List<String> indVars,
+                                   @Name("dependent variable") String depVar, @Name("new variable name") String newVarName,
+                                   @Name("data source") String dataSource,
+                                   @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+
+        EntityScan.checkDataSource(dataSource);
+        return multiple("example.multipleRegression", label, indVars, depVar, newVarName, dataSource,
+                new RegressionConfig(config));
+    }
+
+    //multipleRegression, recorded in the metrics under the name of the procedure that was called
+    private Stream<RegressionResult> multiple(String procedure, String label, List<String> indVars, String depVar,
+                                              String newVarName, String dataSource, RegressionConfig configuration) {
+        if (indVars.isEmpty()) {
+            throw new RuntimeException("at least one independent variable is needed");
         }
+        PredictionWriter.checkBatches(db, configuration.batchSize());
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start(procedure)) {
+            String[] variables = indVars.toArray(new String[0]);
+            FeatureExpansion expansion = configuration.expansion();
+            String[] terms = expansion.terms(variables);
 
-        ResourceIterator<Entity> knownValues = resultKnown.columnAs(dataSource);
-        SimpleRegression R = new SimpleRegression();
+            //one pass accumulates the co-moments of the known points and the ids of the unknown ones
+            run.enter(RegressionMetrics.Phase.SCAN);
+            List<FeatureAccumulator> partials = EntityScan.scanFeatures(db, dataSource, label, variables, depVar,
+                    configuration.concurrency(), () -> new FeatureAccumulator(variables.length, expansion));
+            run.enter(RegressionMetrics.Phase.FIT);
+            FeatureAccumulator scanned = partials.get(0);
+            for (int i = 1; i < partials.size(); i++) {
+                scanned.merge(partials.get(i));
+            }
+            MultipleLinearModel model = scanned.model;
+            run.scanned = model.getN() + scanned.unknownCount();
 
-        //build the model
-        while (knownValues.hasNext()) {
-            Entity curr = knownValues.next();
-            Object x = curr.getProperty(indVar);
-            Object y = curr.getProperty(depVar);
+            if (model.getN() <= terms.length) {
+                throw new RuntimeException("not enough known values to create a model");
+            }
+            double[] coefficients = model.getCoefficients();
 
-            if (x instanceof Number && y instanceof Number) {
-                R.addData(((Number) x).doubleValue(), ((Number) y).doubleValue());
+            //predict depVar values, reading the features of each unknown entity again rather than keeping them all
+            run.enter(RegressionMetrics.Phase.WRITE);
+            PredictionWriter writer = new PredictionWriter(db, log, newVarName, y -> y, configuration.batchSize(),
+                    configuration.concurrency())
+                    .skipUnchanged(configuration.epsilon(), configuration.relativeEpsilon());
+            double[] x = new double[variables.length];
+            double[] features = new double[terms.length];
+            for (int i = 0; i < scanned.unknownCount(); i++) {
+                long id = scanned.unknownId(i);
+                if (EntityScan.readFeatures(EntityScan.entity(db, dataSource, id), variables, x)
+                        && expansion.expand(x, features)) {
+                    writer.write(dataSource, id, model.predict(features));
+                }
             }
+            writer.finish();
+            run.written = writer.written();
 
+            Node n = db.createNode(Label.label("LinReg"), Label.label("Multiple"));
+            n.setProperty("label", label);
+            n.setProperty("indVars", variables);
+            n.setProperty("depVar", depVar);
+            //coefficients follow the order of terms
+            if (!expansion.isIdentity()) {
+                n.setProperty("terms", terms);
+                n.setProperty("degree", configuration.degree());
+                n.setProperty("transforms", configuration.transforms().toArray(new String[0]));
+            }
+            n.setProperty("rSquare", model.getRSquare());
+            n.setProperty("intercept", model.getIntercept());
+            n.setProperty("coefficients", coefficients);
+            run.enter(RegressionMetrics.Phase.SERIALIZE);
+            byte[] serialized = ModelFormat.write(model);
+            run.bytesSerialized = serialized.length;
+            run.enter(RegressionMetrics.Phase.WRITE);
+            n.setProperty("serializedModel", serialized);
+            run.succeeded();
+            return Stream.of(new RegressionResult(writer));
         }
+    }
 
-        if (R.getN() < 2) {
-            throw new RuntimeException("not enough known values to create a model");
+    //one single variable regression per value of a group property, all fitted in the same scan
+    @Procedure(value = "example.groupedRegression", mode = Mode.WRITE)
+    @Description("create a linear regression model for every value of groupProperty among the nodes/relationships that " +
+            "have the given label, using a single scan. Store each model in its own LinReg node and, unless newVarName " +
+            "is empty, store predicted values for entities with known x but no known y using the model of their group")
+    public Stream<GroupedResult> groupedRegression(@Name("label") String label, @Name("group property") String groupProperty,
+                                   @Name("independent variable") String indVar, @Name("dependent variable") String depVar,
+                                   @Name("new variable name") String newVarName, @Name("data source") String dataSource,
+                                   @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        EntityScan.checkDataSource(dataSource);
+        RegressionConfig configuration = new RegressionConfig(config);
+        PredictionWriter.checkBatches(db, configuration.batchSize());
+        boolean predict = !newVarName.isEmpty();
+
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start("example.groupedRegression")) {
+            run.enter(RegressionMetrics.Phase.SCAN);
+            List<GroupAccumulator> partials = EntityScan.scanGroups(db, dataSource, label, groupProperty, indVar, depVar,
+                    configuration.concurrency(), () -> new GroupAccumulator(predict));
+            run.enter(RegressionMetrics.Phase.FIT);
+            GroupAccumulator groups = partials.get(0);
+            for (int i = 1; i < partials.size(); i++) {
+                groups.merge(partials.get(i));
+            }
+
+            long known = 0;
+            for (int group = 0; group < groups.groups(); group++) {
+                known += groups.model(group).getN();
+            }
+            run.scanned = known + groups.unknown;
+
+            //predictions are computed here with the model of each group, the writer only stores them
+            run.enter(RegressionMetrics.Phase.WRITE);
+            PredictionWriter writer = new PredictionWriter(db, log, newVarName, y -> y, configuration.batchSize(),
+                    configuration.concurrency())
+                    .skipUnchanged(configuration.epsilon(), configuration.relativeEpsilon());
+            for (int i = 0; i < groups.unknownCount(); i++) {
+                SimpleLinearModel model = groups.model(groups.unknownGroup(i));
+                if (model.getN() < 2) {
+                    writer.skip();
+                } else {
+                    writer.write(dataSource, groups.unknownId(i), model.predict(groups.unknownX(i)));
+                }
+            }
+            writer.finish();
+            run.written = writer.written();
+
+            //groups with fewer than two known points get no model
+            List<Integer> fitted = new ArrayList<>();
+            for (int group = 0; group < groups.groups(); group++) {
+                if (groups.model(group).getN() >= 2) fitted.add(group);
+            }
+            int batchSize = configuration.batchSize();
+            if (batchSize == 0) {
+                for (int group : fitted) {
+                    createGroupModel(groups, group, label, groupProperty, indVar, depVar, dataSource);
+                }
+            } else {
+                //each batch of model nodes is committed in its own transaction on a worker thread
+                for (int start = 0; start < fitted.size(); start += batchSize) {
+                    List<Integer> batch = fitted.subList(start, Math.min(start + batchSize, fitted.size()));
+                    Pools.await(Pools.DEFAULT.submit(() -> {
+                        try (Transaction tx = db.beginTx()) {
+                            for (int group : batch) {
+                                createGroupModel(groups, group, label, groupProperty, indVar, depVar, dataSource);
+                            }
+                            tx.success();
+                        }
+                    }));
+                }
+            }
+            run.succeeded();
+            return Stream.of(new GroupedResult(groups.groups(), fitted.size(), writer));
         }
+    }
+
+    private void createGroupModel(GroupAccumulator groups, int group, String label, String groupProperty,
+                                  String indVar, String depVar, String dataSource) {
+        SimpleLinearModel model = groups.model(group);
+        Node n = db.createNode(Label.label("LinReg"), Label.label("Grouped"));
+        n.setProperty("label", label);
+        n.setProperty("groupProperty", groupProperty);
+        n.setProperty("group", groups.key(group));
+        n.setProperty("indVar", indVar);
+        n.setProperty("depVar", depVar);
+        n.setProperty("dataSource", dataSource);
+        n.setProperty("rSquare", model.getRSquare());
+        n.setProperty("intercept", model.getIntercept());
+        n.setProperty("slope", model.getSlope());
+        n.setProperty("serializedModel", ModelFormat.write(model));
+    }
+
+    /* k-fold cross-validation of the model simpleRegression would fit. One scan gathers a model per fold. The model
+    for each fold is the total minus that fold, and its errors on the fold follow from the fold's sums, so no point
+    is read twice.
+     */
+    @Procedure(value = "example.crossValidateRegression", mode = Mode.READ)
+    @Description("k-fold cross-validate a linear regression over nodes/relationships with the given label and both " +
+            "properties. Each entity is assigned to a fold by hashing its id. Returns, for every fold, the model fitted " +
+            "on the other folds and its RMSE and R squared on the held-out fold, null where they aren't defined")
+    public Stream<FoldResult> crossValidateRegression(@Name("label") String label, @Name("independent variable") String indVar,
+                                 @Name("dependent variable") String depVar, @Name("data source") String dataSource,
+                                 @Name(value = "k", defaultValue = "5") long k,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        EntityScan.checkDataSource(dataSource);
+        if (k < 2 || k > 1000) {
+            throw new RuntimeException("k must be between 2 and 1000");
+        }
+        RegressionConfig configuration = new RegressionConfig(config);
 
-        //predict depVar values
-        ResourceIterator<Entity> unknownValues = resultUnknown.columnAs(dataSource);
-        while (unknownValues.hasNext()) {
-            Entity curr = unknownValues.next();
-            Object x = curr.getProperty(indVar);
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start("example.crossValidateRegression")) {
+            run.enter(RegressionMetrics.Phase.SCAN);
+            List<FoldAccumulator> partials = EntityScan.scan(db, dataSource, label, indVar, depVar,
+                    configuration.concurrency(), () -> new FoldAccumulator((int) k));
+            run.enter(RegressionMetrics.Phase.FIT);
+            FoldAccumulator scanned = partials.get(0);
+            for (int i = 1; i < partials.size(); i++) {
+                scanned.merge(partials.get(i));
+            }
+            SimpleLinearModel total = new SimpleLinearModel();
+            for (SimpleLinearModel fold : scanned.folds) {
+                total.append(fold);
+            }
+            run.scanned = total.getN() + scanned.unknown + scanned.rejected;
+            run.rejected = scanned.rejected;
+            if (total.getN() < k) {
+                throw new RuntimeException("not enough known values for " + k + " folds");
+            }
 
-            if (x instanceof Number) {
-                curr.setProperty(newVarName, R.predict(((Number) x).doubleValue()));
+            List<FoldResult> results = new ArrayList<>();
+            for (int i = 0; i < k; i++) {
+                SimpleLinearModel heldOut = scanned.folds[i];
+                SimpleLinearModel training = total.copy();
+                training.subtract(heldOut);
+                results.add(new FoldResult(i, training, heldOut));
             }
+            run.succeeded();
+            return results.stream();
         }
-        parameters.put("int", R.getIntercept());
-        parameters.put("slope", R.getSlope());
-        parameters.put("R2", R.getRSquare());
-        ResourceIterator<Entity> modelNode = db.execute("CREATE (n:LinReg {label:$label, indVar:$indVar, depVar:$depVar, rSquare:$R2, " +
-                "intercept:$int, slope:$slope}) RETURN n", parameters).columnAs("n");
-        Entity n = modelNode.next();
+    }
 
-        //Serialize R and store as property "serializedModel" in the new LinReg node
-        try (ByteArrayOutputStream model = new ByteArrayOutputStream();
-            ObjectOutput out = new ObjectOutputStream(model)){
-            out.writeObject(R);
-            byte[] byteModel = model.toByteArray();
-            n.setProperty("serializedModel", byteModel);
+    /* Estimate of the model simpleRegression would fit, from a Bernoulli sample of the entities that ends early once
+    the confidence intervals of slope and intercept are narrower than the tolerance, see SampleAccumulator. Entities
+    that aren't sampled are never read. The scan runs on the calling thread, so the concurrency option is ignored.
+     */
+    @Procedure(value = "example.simpleRegression.sample", mode = Mode.READ)
+    @Description("estimate a linear regression over nodes/relationships with the given label and both properties from " +
+            "a random sample of them. Config: sampleRate, the probability an entity is read (default 0.1), tolerance, " +
+            "stop once the confidence intervals of slope and intercept are at most this wide on either side (default " +
+            "0, never stop early) and confidence, the level of the intervals (default 0.95). Returns the estimates, " +
+            "the sample size and the error bounds")
+    public Stream<SampleResult> sampleRegression(@Name("label") String label, @Name("independent variable") String indVar,
+                                 @Name("dependent variable") String depVar, @Name("data source") String dataSource,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        EntityScan.checkDataSource(dataSource);
+        RegressionConfig configuration = new RegressionConfig(config);
 
-        } catch (IOException e) {
+        SampleAccumulator sample = new SampleAccumulator(configuration.sampleRate(), configuration.tolerance(),
+                configuration.confidence());
+        EntityScan.sample(db, dataSource, label, indVar, depVar, sample);
+        if (sample.model().getN() < 2) {
+            throw new RuntimeException("not enough data in the sample to create a model");
+        }
+        return Stream.of(new SampleResult(sample));
+    }
 
+    //regression over the most recent points of a label, see WindowModels
+    @Procedure(value = "example.windowRegression", mode = Mode.WRITE)
+    @Description("create a linear regression model over the nodes with the given label whose timeProperty lies within " +
+            "window of the newest timestamp. The model is kept in memory and follows nodes of the label as they are " +
+            "created, changed, relabelled or deleted, expiring points that fall out of the window. Its definition is " +
+            "stored in a LinReg:Window node with ID modelID")
+    public Stream<WindowResult> windowRegression(@Name("label") String label, @Name("time property") String timeProperty,
+                                 @Name("independent variable") String indVar, @Name("dependent variable") String depVar,
+                                 @Name("window") double window, @Name("model ID") long modelID) {
+        if (window <= 0) {
+            throw new RuntimeException("window must be greater than 0");
+        }
+        if (db.findNode(Label.label("LinReg"), "ID", modelID) != null) {
+            throw new RuntimeException("a model with ID " + modelID + " already exists");
         }
+        Node n = db.createNode(Label.label("LinReg"), WindowModels.WINDOW);
+        n.setProperty("ID", modelID);
+        n.setProperty("label", label);
+        n.setProperty("timeProperty", timeProperty);
+        n.setProperty("indVar", indVar);
+        n.setProperty("depVar", depVar);
+        n.setProperty("window", window);
+        //the window is only kept once this transaction has committed, see WindowModels
+        return Stream.of(new WindowResult(modelID, WindowModels.forDatabase(db).define(n)));
     }
 
-    //separate function to clean up customRegression and updateRegression. Adds known values to the model R
-    private void addValuesToModel(Result knownValues, SimpleRegression R) {
-        List<String> columns = knownValues.columns();
-        String indVar = columns.get(0);
-        String depVar = columns.get(1);
-        while(knownValues.hasNext()) {
-            Map<String, Object> row = knownValues.next();
-            Object x = row.get(indVar); Object y = row.get(depVar);
-            if (x instanceof Number && y instanceof Number) {
-                R.addData(((Number) x).doubleValue(), ((Number) y).doubleValue());
-            }
+    @Procedure(value = "example.windowRegression.current", mode = Mode.READ)
+    @Description("return the current slope, intercept and number of points of the window regression with ID modelID")
+    public Stream<WindowResult> windowRegressionCurrent(@Name("model ID") long modelID) {
+        WindowModels.Window window = WindowModels.forDatabase(db).window(modelID);
+        if (window == null) {
+            throw new RuntimeException("no window regression with model ID " + modelID);
         }
+        return Stream.of(new WindowResult(modelID, window));
     }
 
-    //separate function to clean up customRegression and updateRegression. Removes values from the model R
-    private void removeValuesFromModel(Result toRemove, SimpleRegression R) {
-        String indVar = toRemove.columns().get(0);
-        String depVar = toRemove.columns().get(1);
-        Map<String, Object> row;
-        while (toRemove.hasNext()) {
-            row = toRemove.next();
+    /* separate function to clean up customRegression and updateRegression. Adds known values to the model R. With
+    distinct, the third column identifies the entity of each row and only its first row is used
+     */
+    private void addValuesToModel(Result knownValues, SimpleLinearModel R, boolean distinct,
+                                  RegressionMetrics.Recorder run) {
+        readValues(knownValues, distinct, run, R::addData);
+    }
+
+    //passes the numeric x and y values of each row to points, the first two columns of the query
+    private void readValues(Result rows, boolean distinct, RegressionMetrics.Recorder run, PointConsumer points) {
+        List<String> columns = rows.columns();
+        String indVar = columns.get(0);
+        String depVar = columns.get(1);
+        String id = idColumn(columns, distinct);
+        DistinctIds seen = distinct ? new DistinctIds() : null;
+        while (rows.hasNext()) {
+            Map<String, Object> row = rows.next();
+            run.scanned++;
             Object x = row.get(indVar);
             Object y = row.get(depVar);
-            if (x instanceof Number && y instanceof Number) {
-                R.removeData(((Number) x).doubleValue(), ((Number) y).doubleValue());
+            if (!(x instanceof Number && y instanceof Number)) {
+                run.rejected++;
+            } else if (seen == null || seen.firstOccurrence(row.get(id))) {
+                points.accept(((Number) x).doubleValue(), ((Number) y).doubleValue());
             }
         }
     }
 
-    //predicts and stores values using the model R
-    private void setPredictedValues(Result r, SimpleRegression R, String newVarName) {
-        String entity = r.columns().get(0);
-        String indVar = r.columns().get(1);
-        Map<String, Object> row;
-        while(r.hasNext()) {
-            row = r.next();
-            Entity e = (Entity) row.get(entity);
-            double x = ((Number) row.get(indVar)).doubleValue();
-            e.setProperty(newVarName, R.predict(x));
-
-        }
+    private interface PointConsumer {
+        void accept(double x, double y);
     }
 
-    //Serializes the object into a byte array for storage
-    private byte[] convertToBytes(Object object) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = new ObjectOutputStream(bos)) {
-            out.writeObject(object);
-            return bos.toByteArray();
+    private static String idColumn(List<String> columns, boolean distinct) {
+        if (!distinct) return null;
+        if (columns.size() < 3) {
+            throw new RuntimeException("with distinct, queries must return an entity or entity id as third column");
         }
+        return columns.get(2);
     }
 
-    //de serializes the byte array and returns the stored object
-    private Object convertFromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-        ObjectInput in = new ObjectInputStream(bis)) {
-            return in.readObject();
+    /* predicts and stores values using the model held by the writer. Rows without an entity or a numeric x are skipped.
+    If the writer reads the x values itself, only the entity in the first column is used
+     */
+    private void setPredictedValues(Result r, PredictionWriter writer) {
+        String entity = r.columns().get(0);
+        String indVar = writer.readsX() ? null : r.columns().get(1);
+        Map<String, Object> row;
+        while(r.hasNext()) {
+            row = r.next();
+            Object e = row.get(entity);
+            if (indVar == null) {
+                if (e instanceof Entity) {
+                    writer.write((Entity) e);
+                } else {
+                    writer.skip();
+                }
+                continue;
+            }
+            Object x = row.get(indVar);
+            if (e instanceof Entity && x instanceof Number) {
+                writer.write((Entity) e, ((Number) x).doubleValue());
+            } else {
+                writer.skip();
+            }
         }
+        writer.finish();
     }
 
     /* modelQuery must return a Result with first column indVar and second column depVar. This data will be used
     to create the model. If nonempty, mapQuery must return a two column Result with first column of type Entity (node or relationship)
     and second column if indVars. The predicted depVar value will be stored under the property named newVarName.
     Model will be serialized and stored in a node with modelID property. MAKE SURE YOUR QUERIES DON'T CONTAIN
-    DUPLICATE VALUES OR THE MODEL WILL NOT BE CREATED CORRECTLY
+    DUPLICATE VALUES OR THE MODEL WILL NOT BE CREATED CORRECTLY, or pass the config option distinct:true and return
+    the entity or its id as third column of modelQuery, so repeated rows are dropped
      */
     @Procedure(value = "example.customRegression", mode = Mode.WRITE)
     @Description("Create a linear regression model using the the two data points which result from running the modelQuery." +
             " Then store predicted values on the Entities that result from running the mapQuery.")
-    public void customRegression(@Name("model query") String modelQuery, @Name("map query") String mapQuery,
-                                 @Name("new variable name") String newVarName, @Name("model ID") long modelID) {
+    public Stream<RegressionResult> customRegression(@Name("model query") String modelQuery, @Name("map query") String mapQuery,
+                                 @Name("new variable name") String newVarName, @Name("model ID") long modelID,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        RegressionConfig configuration = new RegressionConfig(config);
+        PredictionWriter.checkBatches(db, configuration.batchSize());
+        if (configuration.enforceBudget()) {
+            new RegressionEstimator(db, configuration).custom(modelQuery, mapQuery).check();
+        }
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start("example.customRegression")) {
+
+            run.enter(RegressionMetrics.Phase.SCAN);
+            Result knownValues;
+            try
+            {
+                knownValues = db.execute(modelQuery);
+            }
+            catch (QueryExecutionException q)
+            {
+                throw new RuntimeException("model query is invalid");
+            }
+
+            SimpleLinearModel R = new SimpleLinearModel();
+
+            addValuesToModel(knownValues, R, configuration.distinct(), run);
+
+            if (R.getN() < 2) {
+                throw new RuntimeException("not enough data to create a model");
+            }
+            //store the model in a new LinReg node
+            run.enter(RegressionMetrics.Phase.WRITE);
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("int", R.getIntercept()); parameters.put("slope", R.getSlope());
+            parameters.put("modelID", modelID); parameters.put("rSquare", R.getRSquare());
+
+            ResourceIterator<Entity> modelNode = db.execute("CREATE (n:LinReg:Custom {intercept:$int, slope:$slope, " +
+                    "ID:$modelID, rSquare:$rSquare, modelVersion:0}) RETURN n", parameters).columnAs("n");
+            Entity n = modelNode.next();
 
-        Result knownValues;
-        try
-        {
-            knownValues = db.execute(modelQuery);
+            //store R as property "serializedModel" in the new LinReg node
+            run.enter(RegressionMetrics.Phase.SERIALIZE);
+            byte[] serialized = ModelFormat.write(R);
+            run.bytesSerialized = serialized.length;
+            run.enter(RegressionMetrics.Phase.WRITE);
+            n.setProperty("serializedModel", serialized);
+            //the first update of the model won't have to read it back
+            ModelCache.forDatabase(db).put(modelID, n.getId(), 0, R.copy());
+            //if mapQuery is empty, we are done
+            if (mapQuery.equals("")) {
+                run.succeeded();
+                return Stream.of(new RegressionResult());
+            }
+            //otherwise, we need to map our model onto unknown values
+            Result r;
+            PredictionWriter writer = new PredictionWriter(db, log, newVarName, R::predict, configuration.batchSize(),
+                    configuration.concurrency())
+                    .skipUnchanged(configuration.epsilon(), configuration.relativeEpsilon())
+                    .readingX(configuration.indVar());
+            try
+            {
+                r = db.execute(mapQuery);
+            }
+            catch (QueryExecutionException q)
+            {
+                throw new RuntimeException("map query is invalid, no predicted values were stored");
+            }
+            //failures of the writer carry their own message
+            setPredictedValues(r, writer);
+            run.written = writer.written();
+            run.succeeded();
+            return Stream.of(new RegressionResult(writer));
         }
-        catch (QueryExecutionException q)
-        {
-            throw new RuntimeException("model query is invalid");
+    }
+
+    @Procedure(value = "example.updateRegression", mode = Mode.WRITE)
+    @Description("Update the linear regression model stored in the LinReg node with ID modelID by removing data, adding" +
+            " data, and mapping updated predictions as specified by the provided queries.")
+    public Stream<RegressionResult> updateRegression(@Name("remove query") String removeQuery, @Name("add query") String addQuery, @Name("map query") String mapQuery,
+                                 @Name("new variable name") String newVarName, @Name("existing model ID") long modelID,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        RegressionConfig configuration = new RegressionConfig(config);
+        PredictionWriter.checkBatches(db, configuration.batchSize());
+        if (configuration.enforceBudget()) {
+            new RegressionEstimator(db, configuration).update(removeQuery, addQuery, mapQuery).check();
         }
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start("example.updateRegression")) {
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("ID", modelID);
 
-        SimpleRegression R = new SimpleRegression();
+            Node modelNode;
+            try {
+                ResourceIterator<Node> n = db.execute("MATCH (n:LinReg {ID:$ID}) RETURN " +
+                        "n", parameters).columnAs("n");
+                modelNode = n.next();
+            } catch (Exception e) {
+                throw new RuntimeException("no existing model for specified independent and dependent variables and model ID");
+            }
+            //read the points to remove and add before the model is locked, concurrent updates only wait for each other after
+            run.enter(RegressionMetrics.Phase.SCAN);
+            ModelDelta delta = new ModelDelta();
+            if (!removeQuery.equals("")) {
+                Result toRemove;
+                try {
+                    toRemove = db.execute(removeQuery);
+                    readValues(toRemove, configuration.distinct(), run, delta::remove);
+                } catch (QueryExecutionException e) {
+                    throw new RuntimeException("invalid removeQuery");
+                }
+            }
+            if (!addQuery.equals("")) {
+                Result toAdd;
+                try {
+                    toAdd = db.execute(addQuery);
+                } catch (QueryExecutionException e) {
+                    throw new RuntimeException("invalid addQuery");
+                }
+                readValues(toAdd, configuration.distinct(), run, delta::add);
+            }
+            run.enter(RegressionMetrics.Phase.FIT);
+            SimpleLinearModel R = merge(modelID, modelNode, delta, run);
 
-        addValuesToModel(knownValues, R);
+            //if mapquery nonempty, map new model
+            run.enter(RegressionMetrics.Phase.WRITE);
+            RegressionResult result = new RegressionResult();
+            if (!mapQuery.equals("")) {
+                Result toMap;
+                try {
+                    toMap = db.execute(mapQuery);
+                } catch (QueryExecutionException e) {
+                    throw new RuntimeException("invalid mapQuery");
+                }
+                PredictionWriter writer = new PredictionWriter(db, log, newVarName, R::predict, configuration.batchSize(),
+                    configuration.concurrency())
+                    .skipUnchanged(configuration.epsilon(), configuration.relativeEpsilon())
+                    .readingX(configuration.indVar());
+                setPredictedValues(toMap, writer);
+                result = new RegressionResult(writer);
+                run.written = writer.written();
+            }
+            run.succeeded();
+            return Stream.of(result);
+        }
+    }
 
+    /* Applies the delta of updateRegression to the stored model in the calling transaction and returns the updated
+    model. The model node stays locked until that transaction ends, so a concurrent update reads the model only once
+    this one has committed, and nothing of the update is kept if it rolls back.
+     */
+    private SimpleLinearModel merge(long modelID, Node modelNode, ModelDelta delta, RegressionMetrics.Recorder run) {
+        try {
+            ModelCache.lock(modelNode);
+        } catch (NotFoundException e) {
+            throw new RuntimeException("no existing model for specified independent and dependent variables and model ID");
+        }
+        //retrieve the model from the cache, or read it from the node if the node holds a version that wasn't cached
+        ModelCache cache = ModelCache.forDatabase(db);
+        long version = ((Number) modelNode.getProperty(ModelCache.VERSION, 0L)).longValue();
+        SimpleLinearModel R = cache.get(modelID, modelNode.getId(), version);
+        if (R == null) {
+            Object stored = modelNode.getProperty("serializedModel", null);
+            if (!(stored instanceof byte[])) {
+                throw new RuntimeException("no existing model for specified independent and dependent variables and model ID");
+            }
+            R = ModelFormat.readSimple((byte[]) stored);
+        }
+        delta.applyTo(R);
         if (R.getN() < 2) {
-            throw new RuntimeException("not enough data to create a model");
+            throw new RuntimeException("not enough data remaining to create a model, process aborted");
         }
-        //store the model in a new LinReg node
-        Map<String, Object> parameters = new HashMap<>();
-        parameters.put("int", R.getIntercept()); parameters.put("slope", R.getSlope());
-        parameters.put("modelID", modelID); parameters.put("rSquare", R.getRSquare());
+        byte[] serialized = ModelFormat.write(R);
+        run.bytesSerialized = serialized.length;
+        modelNode.setProperty("serializedModel", serialized);
+        modelNode.setProperty("intercept", R.getIntercept());
+        modelNode.setProperty("slope", R.getSlope());
+        modelNode.setProperty("rSquare", R.getRSquare());
+        modelNode.setProperty(ModelCache.VERSION, version + 1);
+        cache.put(modelID, modelNode.getId(), version + 1, R.copy());
+        return R;
+    }
 
-        ResourceIterator<Entity> modelNode = db.execute("CREATE (n:LinReg:Custom {intercept:$int, slope:$slope, " +
-                "ID:$modelID, rSquare:$rSquare}) RETURN n", parameters).columnAs("n");
-        Entity n = modelNode.next();
+    //read-only variant of simpleRegression, streams the predictions instead of storing them
+    @Procedure(value = "example.simpleRegression.stream", mode = Mode.READ)
+    @Description("create a linear regression model like example.simpleRegression, then stream the predicted values for " +
+            "nodes/relationships with known x but no known y instead of storing them. Nothing is written. With the " +
+            "config option residuals:true entities with a known y are streamed too, with their residual")
+    public Stream<Prediction> simpleRegressionStream(@Name("label") String label, @Name("independent variable") String indVar,
+                                 @Name("dependent variable") String depVar, @Name("data source") String dataSource,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        EntityScan.checkDataSource(dataSource);
+        RegressionConfig configuration = new RegressionConfig(config);
 
-        //Serialize R and store as property "serializedModel" in the new LinReg node
-        try {
-            byte[] byteModel = convertToBytes(R);
-            n.setProperty("serializedModel", byteModel);
+        //fit the model first, predictions are then computed as the entities are read a second time
+        List<ScanAccumulator> partials = EntityScan.scan(db, dataSource, label, indVar, depVar,
+                configuration.concurrency(), () -> new ScanAccumulator(false));
+        SimpleLinearModel R = partials.get(0).model;
+        for (int i = 1; i < partials.size(); i++) {
+            R.append(partials.get(i).model);
+        }
+        if (R.getN() < 2) {
+            throw new RuntimeException("not enough known values to create a model");
+        }
+
+        boolean residuals = configuration.residuals();
+        return EntityScan.entities(db, dataSource, label, indVar).stream().map(entity -> {
+            Map<String, Object> properties = entity.getProperties(indVar, depVar);
+            Object x = properties.get(indVar);
+            Object y = properties.get(depVar);
+            if (!(x instanceof Number)) return null;
+            if (y == null) return new Prediction(entity, ((Number) x).doubleValue(), R, null);
+            if (residuals && y instanceof Number) return new Prediction(entity, ((Number) x).doubleValue(), R, (Number) y);
+            return null;
+        }).filter(Objects::nonNull);
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException("something went wrong, model can't be linearized so no serialized model was stored");
+    //read-only variant of customRegression, streams the predictions instead of storing them
+    @Procedure(value = "example.customRegression.stream", mode = Mode.READ)
+    @Description("Create a linear regression model from the rows of modelQuery like example.customRegression, then stream " +
+            "the predicted values for the rows of mapQuery instead of storing them. Nothing is written. If mapQuery " +
+            "returns a third column with known y values, their residuals are streamed too")
+    public Stream<Prediction> customRegressionStream(@Name("model query") String modelQuery, @Name("map query") String mapQuery,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        RegressionConfig configuration = new RegressionConfig(config);
+        SimpleLinearModel R = new SimpleLinearModel();
+        //the predictions are computed as the caller consumes them, so only building the model is recorded
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start("example.customRegression.stream")) {
+            run.enter(RegressionMetrics.Phase.SCAN);
+            Result knownValues;
+            try {
+                knownValues = db.execute(modelQuery);
+            } catch (QueryExecutionException e) {
+                throw new RuntimeException("model query is invalid");
+            }
+            addValuesToModel(knownValues, R, configuration.distinct(), run);
+            if (R.getN() < 2) {
+                throw new RuntimeException("not enough data to create a model");
+            }
+            run.succeeded();
         }
-        //if mapQuery is empty, we are done
-        if (mapQuery.equals("")) return;
-        //otherwise, we need to map our model onto unknown values
-        Result r;
-        String columnTitle;
-        try
-        {
-            r = db.execute(mapQuery);
-            setPredictedValues(r, R, newVarName);
+        return streamPredictions(mapQuery, R);
+    }
+
+    //streams predictions of a stored model, without writing anything
+    @Procedure(value = "example.predict.stream", mode = Mode.READ)
+    @Description("Stream the values predicted by the model stored in the LinReg node with ID modelID for the rows of " +
+            "mapQuery. Nothing is written. If mapQuery returns a third column with known y values, their residuals " +
+            "are streamed too")
+    public Stream<Prediction> predictStream(@Name("model ID") long modelID, @Name("map query") String mapQuery,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        return streamPredictions(mapQuery, storedModel(modelID));
+    }
+
+    /* mapQuery must return an entity and its x value, and may return a known y value as third column. Rows are read
+    and predicted one at a time as the caller consumes the stream, rows without a numeric x are left out.
+     */
+    private Stream<Prediction> streamPredictions(String mapQuery, SimpleLinearModel R) {
+        Result rows;
+        try {
+            rows = db.execute(mapQuery);
+        } catch (QueryExecutionException e) {
+            throw new RuntimeException("invalid mapQuery");
         }
-        catch (Exception q)
-        {
-            throw new RuntimeException("map query is invalid, no predicted values were stored");
+        List<String> columns = rows.columns();
+        if (columns.size() < 2) {
+            throw new RuntimeException("mapQuery must return an entity and its x value");
         }
+        String entity = columns.get(0);
+        String indVar = columns.get(1);
+        String depVar = columns.size() > 2 ? columns.get(2) : null;
+        return rows.stream().map(row -> {
+            Object x = row.get(indVar);
+            if (!(x instanceof Number)) return null;
+            Object y = depVar == null ? null : row.get(depVar);
+            return new Prediction(row.get(entity), ((Number) x).doubleValue(), R, y instanceof Number ? (Number) y : null);
+        }).filter(Objects::nonNull);
+    }
 
+    @UserFunction("example.predictBatch")
+    @Description("example.predictBatch(modelID, xs) - returns the predicted y value for every x in xs, using the " +
+            "model stored in the LinReg node with ID modelID")
+    public List<Double> predictBatch(@Name("model ID") long modelID, @Name("xs") List<Number> xs) {
+        double[] values = new double[xs.size()];
+        int i = 0;
+        for (Number x : xs) {
+            if (x == null) throw new RuntimeException("xs must only contain numbers");
+            values[i++] = x.doubleValue();
+        }
+        storedModel(modelID).predict(values, values);
+        return new DoubleList(values);
+    }
 
+    @UserFunction("example.predictWithModel")
+    @Description("example.predictWithModel(modelID, x) - returns the predicted y value for x, using the model stored " +
+            "in the LinReg node with ID modelID")
+    public Double predictWithModel(@Name("model ID") long modelID, @Name("x") double x) {
+        return storedModel(modelID).predict(x);
+    }
 
+    /* Returns the model stored in the LinReg node with ID modelID for prediction only. The model is read from the node
+    once and then shared through the cache, so a query calling a function on every row only checks the version of the
+    node per row.
+     */
+    private SimpleLinearModel storedModel(long modelID) {
+        ModelCache cache = ModelCache.forDatabase(db);
+        long nodeId = cache.nodeId(modelID);
+        if (nodeId >= 0) {
+            try {
+                Node node = db.getNodeById(nodeId);
+                long version = ((Number) node.getProperty(ModelCache.VERSION, 0L)).longValue();
+                SimpleLinearModel model = cache.peek(modelID, nodeId, version);
+                if (model != null) return model;
+            } catch (NotFoundException e) {
+                //deleted in this transaction, look the model up again
+            }
+        }
 
+        Node node = db.findNode(Label.label("LinReg"), "ID", modelID);
+        Object stored = node == null ? null : node.getProperty("serializedModel", null);
+        if (!(stored instanceof byte[])) {
+            throw new RuntimeException("no existing model for model ID " + modelID);
+        }
+        SimpleLinearModel model = ModelFormat.readSimple((byte[]) stored);
+        cache.put(modelID, node.getId(), ((Number) node.getProperty(ModelCache.VERSION, 0L)).longValue(), model);
+        return model;
+    }
 
+    @Procedure(value = "example.snapshot.load", mode = Mode.READ)
+    @Description("Read the given numeric properties of all nodes with the label, or relationships with the type, into " +
+            "an in-memory columnar snapshot stored under name, replacing any snapshot of that name. With the config " +
+            "option offHeap:true the columns are kept outside the heap. Least recently used snapshots are evicted to " +
+            "stay within example.regression.snapshotBytes")
+    public Stream<SnapshotInfo> loadSnapshot(@Name("name") String name, @Name("label") String label,
+                                 @Name("properties") List<String> properties, @Name("data source") String dataSource,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        EntityScan.checkDataSource(dataSource);
+        RegressionConfig configuration = new RegressionConfig(config);
+        Snapshots snapshots = Snapshots.forDatabase(db);
+        List<String> evicted = snapshots.load(db, name, dataSource, label, properties, configuration.offHeap());
+        return Stream.of(new SnapshotInfo(snapshots.get(name), evicted));
     }
 
-    @Procedure(value = "example.updateRegression", mode = Mode.WRITE)
-    @Description("Update the linear regression model stored in the LinReg node with ID modelID by removing data, adding" +
-            " data, and mapping updated predictions as specified by the provided queries.")
-    public void updateRegression(@Name("remove query") String removeQuery, @Name("add query") String addQuery, @Name("map query") String mapQuery,
-                                 @Name("new variable name") String newVarName, @Name("existing model ID") long modelID) {
-        Map<String, Object> parameters = new HashMap<>();
-        parameters.put("ID", modelID);
+    @Procedure(value = "example.snapshot.drop", mode = Mode.READ)
+    @Description("Drop the snapshot stored under name and free its memory")
+    public Stream<SnapshotInfo> dropSnapshot(@Name("name") String name) {
+        return Stream.of(new SnapshotInfo(Snapshots.forDatabase(db).drop(name), Collections.emptyList()));
+    }
 
-        SimpleRegression R;
-        Entity modelNode;
-        //retrieve and deserialize the model
-        try {
-            ResourceIterator<Entity> n = db.execute("MATCH (n:LinReg {ID:$ID}) RETURN " +
-                    "n", parameters).columnAs("n");
-            modelNode = n.next();
-            byte[] model = (byte[]) modelNode.getProperty("serializedModel");
-            R = (SimpleRegression) convertFromBytes(model);
+    @Procedure(value = "example.snapshot.list", mode = Mode.READ)
+    @Description("List the snapshots in memory, least recently used first")
+    public Stream<SnapshotInfo> listSnapshots() {
+        return Snapshots.forDatabase(db).list().stream()
+                .map(snapshot -> new SnapshotInfo(snapshot, Collections.emptyList()));
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException("no existing model for specified independent and dependent variables and model ID");
-        }
-        //if there is a nonempty removeQuery we must remove these values from the model
-        if (!removeQuery.equals("")) {
-            Result toRemove;
-            try {
-                toRemove = db.execute(removeQuery);
-                removeValuesFromModel(toRemove, R);
-            } catch (QueryExecutionException e) {
-                throw new RuntimeException("invalid removeQuery");
+    @Procedure(value = "example.snapshot.regression", mode = Mode.WRITE)
+    @Description("Same as example.simpleRegression, reading x and y from the columns of a snapshot instead of the " +
+            "store. Predictions are written to the entities of the snapshot with an x but no y. The model is stored " +
+            "in a LinReg node together with the name of the snapshot")
+    public Stream<RegressionResult> snapshotRegression(@Name("snapshot") String name, @Name("independent variable") String indVar,
+                                 @Name("dependent variable") String depVar, @Name("new variable name") String newVarName,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        RegressionConfig configuration = new RegressionConfig(config);
+        PredictionWriter.checkBatches(db, configuration.batchSize());
+        Snapshots.Snapshot snapshot = Snapshots.forDatabase(db).get(name);
+        int xColumn = snapshot.column(indVar);
+        int yColumn = snapshot.column(depVar);
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start("example.snapshot.regression")) {
+            run.enter(RegressionMetrics.Phase.SCAN);
+            SimpleLinearModel R = new SimpleLinearModel();
+            PointBuffer unknownValues = new PointBuffer();
+            for (int row = 0; row < snapshot.size; row++) {
+                double x = snapshot.value(xColumn, row);
+                if (Double.isNaN(x)) {
+                    run.rejected++;
+                    continue;
+                }
+                double y = snapshot.value(yColumn, row);
+                if (Double.isNaN(y)) {
+                    unknownValues.add(snapshot.id(row), x);
+                } else {
+                    R.addData(x, y);
+                }
+            }
+            run.scanned = snapshot.size;
+            if (R.getN() < 2) {
+                throw new RuntimeException("not enough known values to create a model");
+            }
+
+            run.enter(RegressionMetrics.Phase.WRITE);
+            PredictionWriter writer = new PredictionWriter(db, log, newVarName, R::predict, configuration.batchSize(),
+                    configuration.concurrency())
+                    .skipUnchanged(configuration.epsilon(), configuration.relativeEpsilon());
+            for (int i = 0; i < unknownValues.size(); i++) {
+                try {
+                    writer.write(snapshot.dataSource, unknownValues.id(i), unknownValues.x(i));
+                } catch (NotFoundException e) {
+                    //deleted since the snapshot was loaded
+                    writer.skip();
+                }
             }
+            writer.finish();
+            run.written = writer.written();
+
+            run.enter(RegressionMetrics.Phase.SERIALIZE);
+            byte[] serialized = ModelFormat.write(R);
+            run.bytesSerialized = serialized.length;
+            run.enter(RegressionMetrics.Phase.WRITE);
+            Node n = db.createNode(Label.label("LinReg"));
+            n.setProperty("label", snapshot.label);
+            n.setProperty("indVar", indVar);
+            n.setProperty("depVar", depVar);
+            n.setProperty("dataSource", snapshot.dataSource);
+            n.setProperty("snapshot", snapshot.name);
+            n.setProperty("rSquare", R.getRSquare());
+            n.setProperty("intercept", R.getIntercept());
+            n.setProperty("slope", R.getSlope());
+            n.setProperty(LiveModels.LIVE, false);
+            n.setProperty("serializedModel", serialized);
+            run.succeeded();
+            return Stream.of(new RegressionResult(writer));
+        }
+    }
+
+    @Procedure(value = "example.snapshot.crossValidate", mode = Mode.READ)
+    @Description("Same as example.crossValidateRegression, reading x and y from the columns of a snapshot instead of " +
+            "the store. Entities are assigned to the same folds")
+    public Stream<FoldResult> snapshotCrossValidate(@Name("snapshot") String name, @Name("independent variable") String indVar,
+                                 @Name("dependent variable") String depVar, @Name(value = "k", defaultValue = "5") long k) {
+        if (k < 2 || k > 1000) {
+            throw new RuntimeException("k must be between 2 and 1000");
+        }
+        Snapshots.Snapshot snapshot = Snapshots.forDatabase(db).get(name);
+        int xColumn = snapshot.column(indVar);
+        int yColumn = snapshot.column(depVar);
+        SimpleLinearModel[] folds = new SimpleLinearModel[(int) k];
+        for (int i = 0; i < k; i++) {
+            folds[i] = new SimpleLinearModel();
+        }
+        SimpleLinearModel total = new SimpleLinearModel();
+        for (int row = 0; row < snapshot.size; row++) {
+            double x = snapshot.value(xColumn, row);
+            double y = snapshot.value(yColumn, row);
+            if (Double.isNaN(x) || Double.isNaN(y)) continue;
+            folds[FoldAccumulator.fold(snapshot.id(row), (int) k)].addData(x, y);
+        }
+        for (SimpleLinearModel fold : folds) {
+            total.append(fold);
         }
-        //if addQuery is nonempty add these values to the model
-        if (!addQuery.equals("")) {
-            Result toAdd;
+        if (total.getN() < k) {
+            throw new RuntimeException("not enough known values for " + k + " folds");
+        }
+
+        List<FoldResult> results = new ArrayList<>();
+        for (int i = 0; i < k; i++) {
+            SimpleLinearModel training = total.copy();
+            training.subtract(folds[i]);
+            results.add(new FoldResult(i, training, folds[i]));
+        }
+        return results.stream();
+    }
+
+    @Procedure(value = "example.snapshot.predict", mode = Mode.READ)
+    @Description("Stream the values predicted by the model stored in the LinReg node with ID modelID for every entity " +
+            "of a snapshot with an x value. Nothing is written. If depVar names a column of the snapshot, the " +
+            "residuals of entities with a known y are streamed too")
+    public Stream<Prediction> snapshotPredict(@Name("snapshot") String name, @Name("model ID") long modelID,
+                                 @Name("independent variable") String indVar,
+                                 @Name(value = "dependent variable", defaultValue = "") String depVar) {
+        Snapshots.Snapshot snapshot = Snapshots.forDatabase(db).get(name);
+        int xColumn = snapshot.column(indVar);
+        int yColumn = depVar.equals("") ? -1 : snapshot.column(depVar);
+        SimpleLinearModel R = storedModel(modelID);
+        return IntStream.range(0, snapshot.size).mapToObj(row -> {
+            double x = snapshot.value(xColumn, row);
+            if (Double.isNaN(x)) return null;
+            Entity entity;
             try {
-                toAdd = db.execute(addQuery);
-            } catch (QueryExecutionException e) {
-                throw new RuntimeException("invalid addQuery");
+                entity = EntityScan.entity(db, snapshot.dataSource, snapshot.id(row));
+            } catch (NotFoundException e) {
+                //deleted since the snapshot was loaded
+                return null;
             }
-            addValuesToModel(toAdd, R);
+            double y = yColumn < 0 ? Double.NaN : snapshot.value(yColumn, row);
+            return new Prediction(entity, x, R, Double.isNaN(y) ? null : y);
+        }).filter(Objects::nonNull);
+    }
 
+    @Procedure(value = "example.regression.cacheStats", mode = Mode.READ)
+    @Description("Report the hits, misses, evictions and invalidations of the cache of models used by updateRegression")
+    public Stream<CacheStats> cacheStats() {
+        return Stream.of(new CacheStats(ModelCache.forDatabase(db).stats()));
+    }
+
+    @Procedure(value = "example.regression.submit", mode = Mode.WRITE)
+    @Description("Run simpleRegression or customRegression as a background job and return its job ID at once. arguments " +
+            "holds the procedure's arguments by name: label, indVar, depVar, newVarName and dataSource for " +
+            "simpleRegression, modelQuery, mapQuery, newVarName and modelID for customRegression. The job reads in its " +
+            "own transaction and commits predictions in batches of batchSize (default 10000). The live, degree and " +
+            "transforms options aren't supported")
+    public Stream<JobStatus> submit(@Name("procedure") String procedure, @Name("arguments") Map<String, Object> arguments,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        RegressionConfig configuration = new RegressionConfig(config);
+        return Stream.of(new JobStatus(RegressionJobs.forDatabase(db).submit(procedure, arguments, configuration, log)));
+    }
+
+    @Procedure(value = "example.regression.status", mode = Mode.READ)
+    @Description("Report the state and progress of the background job with the given ID, or of every job if no ID " +
+            "is given: rows scanned, predictions written and the estimated seconds until the current phase ends")
+    public Stream<JobStatus> status(@Name(value = "job ID", defaultValue = "-1") long jobID) {
+        RegressionJobs jobs = RegressionJobs.forDatabase(db);
+        if (jobID < 0) return jobs.jobs().stream().map(JobStatus::new);
+        return Stream.of(new JobStatus(job(jobs, jobID)));
+    }
+
+    @Procedure(value = "example.regression.cancel", mode = Mode.WRITE)
+    @Description("Cancel the background job with the given ID. Predictions it has committed stay, no model is stored")
+    public Stream<JobStatus> cancel(@Name("job ID") long jobID) {
+        RegressionJobs.Job job = job(RegressionJobs.forDatabase(db), jobID);
+        job.cancel();
+        return Stream.of(new JobStatus(job));
+    }
+
+    private static RegressionJobs.Job job(RegressionJobs jobs, long jobID) {
+        RegressionJobs.Job job = jobs.job(jobID);
+        if (job == null) {
+            throw new RuntimeException("no job with ID " + jobID);
         }
-        if (R.getN() < 2) {
-            throw new RuntimeException("not enough data remaining to create a model, process aborted");
+        return job;
+    }
+
+    @Procedure(value = "example.regression.estimate", mode = Mode.READ)
+    @Description("Estimate the rows scanned, predictions written, peak heap and seconds of a simpleRegression, " +
+            "customRegression or updateRegression call without running it. arguments holds the procedure's arguments " +
+            "by name, as for example.regression.submit, and removeQuery and addQuery for updateRegression. config is " +
+            "the config of the call, its heapBudget and timeBudget are checked")
+    public Stream<EstimateResult> estimate(@Name("procedure") String procedure, @Name("arguments") Map<String, Object> arguments,
+                                 @Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+        RegressionConfig configuration = new RegressionConfig(config);
+        RegressionEstimator.Estimate estimate = new RegressionEstimator(db, configuration).estimate(procedure, arguments);
+        EstimateResult result = new EstimateResult(estimate);
+        if (result.warning != null) log.warn("example.regression.estimate: " + procedure + " " + result.warning);
+        return Stream.of(result);
+    }
+
+    @Procedure(value = "example.regression.metrics", mode = Mode.READ)
+    @Description("Report the counts and per phase timings of the most recent simpleRegression, customRegression and " +
+            "updateRegression calls, newest first. Totals since startup are published over JMX as " +
+            "example.regression:type=Metrics")
+    public Stream<RunMetrics> metrics() {
+        return RegressionMetrics.INSTANCE.recent().stream().map(RunMetrics::new);
+    }
+
+    /**
+     * Output record of the regression procedures: how many predicted values were stored, how many could
+     * not be stored (their batch failed to commit or the entity was deleted), how many mapped rows were
+     * skipped because they had no entity or no numeric x value and how many predictions were not written
+     * because the stored value was within epsilon or relativeEpsilon of them.
+     */
+    public static class RegressionResult {
+        public long written;
+        public long failed;
+        public long skipped;
+        public long unchanged;
+
+        public RegressionResult() {
         }
-        //if mapquery nonempty, map new model
-        if (!mapQuery.equals("")) {
-            Result toMap;
-            String columnTitle;
-            try {
-                toMap = db.execute(mapQuery);
-            } catch (Exception e) {
-                throw new RuntimeException("invalid mapQuery");
+
+        RegressionResult(PredictionWriter writer) {
+            this.written = writer.written();
+            this.failed = writer.failed();
+            this.skipped = writer.skipped();
+            this.unchanged = writer.unchanged();
+        }
+    }
+
+    //Output record of example.groupedRegression
+    public static class GroupedResult {
+        public long groups;
+        public long models;
+        public long written;
+        public long failed;
+        public long skipped;
+        public long unchanged;
+
+        GroupedResult(long groups, long models, PredictionWriter writer) {
+            this.groups = groups;
+            this.models = models;
+            this.written = writer.written();
+            this.failed = writer.failed();
+            this.skipped = writer.skipped();
+            this.unchanged = writer.unchanged();
+        }
+    }
+
+    /**
+     * Output record of example.simpleRegression.sample. slopeError and interceptError are the half-widths of the
+     * confidence intervals, NaN with fewer than three points. converged is true if the scan stopped early.
+     */
+    public static class SampleResult {
+        public long scanned;
+        public long sampleSize;
+        public boolean converged;
+        public double slope;
+        public double intercept;
+        public double rSquare;
+        public double slopeError;
+        public double interceptError;
+
+        SampleResult(SampleAccumulator sample) {
+            SimpleLinearModel model = sample.model();
+            this.scanned = sample.scanned();
+            this.sampleSize = model.getN();
+            this.converged = sample.done();
+            this.slope = model.getSlope();
+            this.intercept = model.getIntercept();
+            this.rSquare = model.getRSquare();
+            this.slopeError = model.getSlopeConfidenceInterval(sample.alpha());
+            this.interceptError = model.getInterceptConfidenceInterval(sample.alpha());
+        }
+    }
+
+    /* Output record of the cross-validation procedures, one per fold. slope and intercept are null if the other folds
+    can't be fitted, rmse also if the fold is empty, and rSquare also if the fold's y values don't vary
+     */
+    public static class FoldResult {
+        public long fold;
+        public long trainingSize;
+        public long testSize;
+        public Double slope;
+        public Double intercept;
+        public Double rmse;
+        public Double rSquare;
+
+        FoldResult(long fold, SimpleLinearModel training, SimpleLinearModel test) {
+            this.fold = fold;
+            this.trainingSize = training.getN();
+            this.testSize = test.getN();
+            double slope = training.getSlope();
+            //fewer than two points, or no variation in x
+            if (Double.isNaN(slope)) return;
+            double intercept = training.getIntercept();
+            this.slope = slope;
+            this.intercept = intercept;
+            //hashing ids can leave a fold empty
+            if (testSize == 0) return;
+            double sse = test.sumSquaredErrors(intercept, slope);
+            this.rmse = Math.sqrt(sse / testSize);
+            //compared with predicting the mean of the held-out fold, which explains everything if y is constant
+            if (test.getSumYY() > 0) this.rSquare = 1 - sse / test.getSumYY();
+        }
+    }
+
+    //Output record of the window regression procedures. oldest and newest are null while the window is empty
+    public static class WindowResult {
+        public long modelID;
+        public long n;
+        public double slope;
+        public double intercept;
+        public double rSquare;
+        public Double oldest;
+        public Double newest;
+
+        WindowResult(long modelID, WindowModels.Window window) {
+            //read under the window's lock, so all values describe the same points
+            synchronized (window) {
+                this.modelID = modelID;
+                this.n = window.getN();
+                this.slope = window.getSlope();
+                this.intercept = window.getIntercept();
+                this.rSquare = window.getRSquare();
+                this.oldest = window.oldest();
+                this.newest = window.newest();
             }
-            setPredictedValues(toMap, R, newVarName);
         }
+    }
 
-        try {
-            byte[] byteModel = convertToBytes(R);
-            modelNode.setProperty("serializedModel", byteModel);
+    //Output record of the streaming procedures. residual is the known y minus the prediction, null if y is unknown
+    public static class Prediction {
+        public Object entity;
+        public double x;
+        public double predicted;
+        public Double residual;
 
-        } catch (IOException e) {
-            throw new RuntimeException("something went wrong, model can't be linearized so new model not stored");
+        Prediction(Object entity, double x, SimpleLinearModel model, Number y) {
+            this.entity = entity;
+            this.x = x;
+            this.predicted = model.predict(x);
+            this.residual = y == null ? null : y.doubleValue() - predicted;
         }
-        modelNode.setProperty("intercept", R.getIntercept());
-        modelNode.setProperty("slope", R.getSlope());
-        modelNode.setProperty("rSquare", R.getRSquare());
+    }
 
+    /**
+     * Output record of the snapshot procedures. bytes is the memory held by the columns, evicted names the
+     * snapshots dropped to make room for a snapshot just loaded.
+     */
+    public static class SnapshotInfo {
+        public String name;
+        public String label;
+        public String dataSource;
+        public List<String> properties;
+        public long rows;
+        public long bytes;
+        public boolean offHeap;
+        public double loadMillis;
+        public List<String> evicted;
+
+        SnapshotInfo(Snapshots.Snapshot snapshot, List<String> evicted) {
+            this.name = snapshot.name;
+            this.label = snapshot.label;
+            this.dataSource = snapshot.dataSource;
+            this.properties = Arrays.asList(snapshot.properties);
+            this.rows = snapshot.size;
+            this.bytes = snapshot.bytes();
+            this.offHeap = snapshot.offHeap;
+            this.loadMillis = snapshot.loadMillis;
+            this.evicted = evicted;
+        }
     }
-}
 
+    //Output record of example.regression.cacheStats
+    public static class CacheStats {
+        public long hits;
+        public long misses;
+        public long evictions;
+        public long invalidations;
+        public long size;
+        public long capacity;
 
+        CacheStats(ModelCache.Stats stats) {
+            this.hits = stats.hits;
+            this.misses = stats.misses;
+            this.evictions = stats.evictions;
+            this.invalidations = stats.invalidations;
+            this.size = stats.size;
+            this.capacity = stats.capacity;
+        }
+    }
+
+    //Output record of example.regression.metrics, one per run. Times are in milliseconds
+    public static class RunMetrics {
+        public String procedure;
+        public long started;
+        public boolean succeeded;
+        public long scanned;
+        public long rejected;
+        public long written;
+        public long bytesSerialized;
+        public double scanMillis;
+        public double fitMillis;
+        public double serializeMillis;
+        public double writeMillis;
+        public double totalMillis;
+
+        RunMetrics(RegressionMetrics.Run run) {
+            this.procedure = run.procedure;
+            this.started = run.started;
+            this.succeeded = run.succeeded;
+            this.scanned = run.scanned;
+            this.rejected = run.rejected;
+            this.written = run.written;
+            this.bytesSerialized = run.bytesSerialized;
+            this.scanMillis = run.millis(RegressionMetrics.Phase.SCAN);
+            this.fitMillis = run.millis(RegressionMetrics.Phase.FIT);
+            this.serializeMillis = run.millis(RegressionMetrics.Phase.SERIALIZE);
+            this.writeMillis = run.millis(RegressionMetrics.Phase.WRITE);
+            this.totalMillis = RegressionMetrics.millis(run.totalNanos);
+        }
+    }
+
+    /**
+     * Output record of the background job procedures. scanned counts entities or model query rows read so far,
+     * toScan is their total if it is known up front. toWrite is the number of predictions to write, if known.
+     * etaSeconds estimates the rest of the current phase, null if there is no estimate.
+     */
+    public static class JobStatus {
+        public long jobID;
+        public String procedure;
+        public String state;
+        public String phase;
+        public long scanned;
+        public Long toScan;
+        public long written;
+        public Long toWrite;
+        public double elapsedSeconds;
+        public Double etaSeconds;
+        public Long modelNodeId;
+        public String error;
 
+        JobStatus(RegressionJobs.Job job) {
+            this.jobID = job.id;
+            this.procedure = job.procedure;
+            this.state = job.state.name();
+            this.phase = job.phase;
+            this.scanned = job.scanned.get();
+            this.toScan = job.toScan < 0 ? null : job.toScan;
+            this.written = job.written();
+            this.toWrite = job.toWrite < 0 ? null : job.toWrite;
+            this.elapsedSeconds = job.elapsedSeconds();
+            this.etaSeconds = job.etaSeconds();
+            this.modelNodeId = job.modelNodeId < 0 ? null : job.modelNodeId;
+            this.error = job.error;
+        }
+    }
+
+    /**
+     * Output record of example.regression.estimate. sampled is the number of entities or query rows that were read
+     * to make the estimate. warning says how the estimate exceeds the budget, null if it is within.
+     */
+    public static class EstimateResult {
+        public String procedure;
+        public long rowsToScan;
+        public long rowsToWrite;
+        public long sampled;
+        public long peakHeapBytes;
+        public double seconds;
+        public long heapBudget;
+        public boolean withinBudget;
+        public String warning;
+
+        EstimateResult(RegressionEstimator.Estimate estimate) {
+            this.procedure = estimate.procedure;
+            this.rowsToScan = estimate.rowsToScan;
+            this.rowsToWrite = estimate.rowsToWrite;
+            this.sampled = estimate.sampled;
+            this.peakHeapBytes = estimate.heapBytes;
+            this.seconds = estimate.seconds;
+            this.heapBudget = estimate.heapBudget();
+            List<String> reasons = estimate.overBudget();
+            this.withinBudget = reasons.isEmpty();
+            this.warning = reasons.isEmpty() ? null : String.join(" and ", reasons);
+        }
+    }
+}
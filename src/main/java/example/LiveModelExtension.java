@@ -0,0 +1,44 @@
+package example;
+
+import org.neo4j.kernel.extension.KernelExtensionFactory;
+import org.neo4j.kernel.impl.spi.KernelContext;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+
+/**
+ * Registers {@link LiveModels} when a database starts, so live models are
+ * maintained from the first transaction on, whether or not a regression
+ * procedure has been called since the restart. Loaded by Neo4j through
+ * META-INF/services.
+ */
+public class LiveModelExtension extends KernelExtensionFactory<LiveModelExtension.Dependencies> {
+
+    public interface Dependencies {
+        GraphDatabaseAPI graphdatabaseAPI();
+    }
+
+    public LiveModelExtension() {
+        super("example-live-models");
+    }
+
+    @Override
+    public Lifecycle newInstance(KernelContext context, Dependencies dependencies) {
+        GraphDatabaseAPI db = dependencies.graphdatabaseAPI();
+        return new LifecycleAdapter() {
+            private LiveModels handler;
+
+            @Override
+            public void start() {
+                handler = LiveModels.forDatabase(db);
+                db.registerTransactionEventHandler(handler);
+            }
+
+            @Override
+            public void stop() {
+                if (handler != null) db.unregisterTransactionEventHandler(handler);
+                handler = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,509 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Keeps live models current. A live model is a LinReg node created by
+ * simpleRegression with the live option, which stores the label, variables
+ * and data source it was fitted on.
+ *
+ * Before a transaction commits, every node or relationship of a live model's
+ * label or type that gained, lost or changed the independent or dependent
+ * property, or gained or lost the label, has its previously committed point
+ * removed from the model and its new point added. The changes of a
+ * transaction are read in one pass for all live models, which are grouped by
+ * label or type. The node of a model with changed points is locked and
+ * rewritten in the same transaction, so the model never sees changes that
+ * are rolled back.
+ *
+ * A transaction only updates the models that were committed when it reached
+ * beforeCommit. So that a new live model misses no change, simpleRegression
+ * fits it and commits it in a transaction of its own inside fit. Meanwhile
+ * transactions that change nodes of the label, or relationships of the type,
+ * wait in beforeCommit, and the fit itself waits until those that were past
+ * beforeCommit already have committed. Every change is then either read by
+ * the fit or applied to the committed model.
+ *
+ * Registered for every database at startup by {@link LiveModelExtension}. The
+ * list of live models is read lazily and read again after a transaction
+ * changes a LinReg node's definition.
+ */
+final class LiveModels extends TransactionEventHandler.Adapter<LiveModels.Commit> {
+
+    static final String LIVE = "live";
+
+    private static final Label LINREG = Label.label("LinReg");
+    //properties of a LinReg node that define what a live model is fitted on
+    private static final Set<String> DEFINITION = new HashSet<>(Arrays.asList(LIVE, "label", "indVar", "depVar",
+            "dataSource"));
+
+    //one per running database
+    private static final PerDatabase<LiveModels> HANDLERS = new PerDatabase<>(LiveModels::new);
+
+    private final GraphDatabaseService db;
+
+    //live models as last read, null until they are read again
+    private Models models;
+    //counts invalidations, so a list read before one isn't kept after it
+    private long generation;
+
+    //thread fitting a live model, by the label or type it is fitted on, see fit
+    private final Map<String, Thread> fitting = new HashMap<>();
+    //transactions between beforeCommit and afterCommit or afterRollback, by label or type they change
+    private final Map<String, Integer> committing = new HashMap<>();
+    //transactions that reached beforeCommit while nothing was fitted, so their labels and types weren't looked up
+    private int committingUnread;
+
+    private LiveModels(GraphDatabaseService db) {
+        this.db = db;
+    }
+
+    //the handler of the database, LiveModelExtension registers it
+    static LiveModels forDatabase(GraphDatabaseService db) {
+        return HANDLERS.get(db);
+    }
+
+    /* Fits and commits a live model of the nodes with the label, or relationships with the type, with fit, which
+    must commit the model node in a transaction of its own before it returns. Returns what fit returns.
+
+    Waits for the fits of other live models of the same label or type, and for the transactions changing it that
+    are past beforeCommit. Transactions that change it wait for the fit in beforeCommit until it has returned.
+     */
+    <T> T fit(String dataSource, String label, Supplier<T> fit) {
+        String key = key(dataSource.equals("node"), label);
+        synchronized (this) {
+            while (fitting.containsKey(key)) await();
+            fitting.put(key, Thread.currentThread());
+            try {
+                while (committingUnread > 0 || committing.containsKey(key)) await();
+            } catch (RuntimeException e) {
+                fitting.remove(key);
+                notifyAll();
+                throw e;
+            }
+        }
+        try {
+            return fit.get();
+        } finally {
+            synchronized (this) {
+                fitting.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public Commit beforeCommit(TransactionData data) {
+        Commit commit = enter(data);
+        try {
+            commit.redefined = updateModels(data);
+            return commit;
+        } catch (RuntimeException e) {
+            //afterRollback is only called for the handlers that returned from beforeCommit
+            leave(commit);
+            throw e;
+        }
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Commit commit) {
+        if (commit == null) return;
+        leave(commit);
+        if (commit.redefined) invalidate();
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Commit commit) {
+        if (commit == null) return;
+        leave(commit);
+        if (commit.redefined) invalidate();
+    }
+
+    //updates the live models the transaction changes points of, returns whether it changes the definitions
+    private boolean updateModels(TransactionData data) {
+        boolean redefined = definitionsChanged(data);
+        Models models = models(!redefined);
+        if (models.isEmpty()) return redefined;
+
+        //one pass over the changes of the transaction collects the points of every live model
+        Map<Definition, Points> changed = new LinkedHashMap<>();
+        collectNodeChanges(models, data, changed);
+        collectRelationshipChanges(models, data, changed);
+        if (changed.isEmpty()) return redefined;
+
+        //a model fitted in this transaction has already seen its changes
+        Set<Long> created = new HashSet<>();
+        for (Node node : data.createdNodes()) {
+            created.add(node.getId());
+        }
+        for (Map.Entry<Definition, Points> entry : changed.entrySet()) {
+            if (!created.contains(entry.getKey().nodeId)) update(entry.getKey(), entry.getValue(), data);
+        }
+        return redefined;
+    }
+
+    /* Counts the transaction as committing under the labels and types it changes, after waiting for the fits of
+    other threads on any of them. While nothing is fitted, it is counted without looking them up.
+     */
+    private Commit enter(TransactionData data) {
+        synchronized (this) {
+            if (fitting.isEmpty()) {
+                committingUnread++;
+                return new Commit(null);
+            }
+        }
+        Set<String> keys = changedKeys(data);
+        synchronized (this) {
+            while (fittedByOthers(keys)) await();
+            for (String key : keys) committing.merge(key, 1, Integer::sum);
+        }
+        return new Commit(keys);
+    }
+
+    private synchronized void leave(Commit commit) {
+        if (commit.keys == null) {
+            committingUnread--;
+        } else {
+            for (String key : commit.keys) {
+                committing.computeIfPresent(key, (ignored, count) -> count == 1 ? null : count - 1);
+            }
+        }
+        notifyAll();
+    }
+
+    private boolean fittedByOthers(Set<String> keys) {
+        for (String key : keys) {
+            Thread fitter = fitting.get(key);
+            if (fitter != null && fitter != Thread.currentThread()) return true;
+        }
+        return false;
+    }
+
+    private void await() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for a live model to be fitted", e);
+        }
+    }
+
+    //the labels of the nodes, and types of the relationships, whose labels or properties the transaction changes
+    private static Set<String> changedKeys(TransactionData data) {
+        Set<String> keys = new HashSet<>();
+        //a deleted node shows all its labels as removed
+        for (LabelEntry entry : data.assignedLabels()) keys.add(key(true, entry.label().name()));
+        for (LabelEntry entry : data.removedLabels()) keys.add(key(true, entry.label().name()));
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) addLabels(entry.entity(), data, keys);
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) addLabels(entry.entity(), data, keys);
+        for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+            keys.add(key(false, entry.entity().getType().name()));
+        }
+        for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+            keys.add(key(false, entry.entity().getType().name()));
+        }
+        return keys;
+    }
+
+    private static void addLabels(Node node, TransactionData data, Set<String> keys) {
+        if (data.isDeleted(node)) return;
+        for (Label label : node.getLabels()) keys.add(key(true, label.name()));
+    }
+
+    //labels and relationship types may share a name
+    private static String key(boolean node, String label) {
+        return (node ? "node:" : "relationship:") + label;
+    }
+
+    //applies the points removed and added by the transaction to one live model
+    private void update(Definition model, Points points, TransactionData data) {
+        if (points.removed.isEmpty() && points.added.isEmpty()) return;
+
+        Node modelNode;
+        try {
+            modelNode = db.getNodeById(model.nodeId);
+        } catch (NotFoundException e) {
+            return;
+        }
+        if (data.isDeleted(modelNode)) return;
+        /* The model is read, changed and written back. Without the lock, two transactions that commit at the same
+        time would both start from the same stored model and the change of one of them would be lost. It is taken in
+        the committing transaction, only by transactions that change a point of the model.
+         */
+        ModelCache.lock(modelNode);
+        Object stored = modelNode.getProperty("serializedModel", null);
+        if (!(stored instanceof byte[])) return;
+
+        SimpleLinearModel R = ModelFormat.readSimple((byte[]) stored);
+        for (double[] point : points.removed) R.removeData(point[0], point[1]);
+        for (double[] point : points.added) R.addData(point[0], point[1]);
+
+        //live models have no ID and are never cached, so modelVersion is left alone
+        modelNode.setProperty("serializedModel", ModelFormat.write(R));
+        modelNode.setProperty("intercept", R.getIntercept());
+        modelNode.setProperty("slope", R.getSlope());
+        modelNode.setProperty("rSquare", R.getRSquare());
+    }
+
+    private static void collectNodeChanges(Models models, TransactionData data, Map<Definition, Points> changed) {
+        if (models.byLabel.isEmpty()) return;
+        Map<Long, Node> touched = new LinkedHashMap<>();
+        Map<Long, Map<String, Object>> previous = new HashMap<>();
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            touch(models.nodeKeys, entry, touched, previous);
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            touch(models.nodeKeys, entry, touched, previous);
+        }
+
+        Map<String, Set<Long>> labelAssigned = new HashMap<>();
+        Map<String, Set<Long>> labelRemoved = new HashMap<>();
+        for (LabelEntry entry : data.assignedLabels()) {
+            String label = entry.label().name();
+            if (!models.byLabel.containsKey(label)) continue;
+            labelAssigned.computeIfAbsent(label, ignored -> new HashSet<>()).add(entry.node().getId());
+            touched.put(entry.node().getId(), entry.node());
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            String label = entry.label().name();
+            if (!models.byLabel.containsKey(label)) continue;
+            labelRemoved.computeIfAbsent(label, ignored -> new HashSet<>()).add(entry.node().getId());
+            touched.put(entry.node().getId(), entry.node());
+        }
+        if (touched.isEmpty()) return;
+
+        for (Map.Entry<String, List<Definition>> group : models.byLabel.entrySet()) {
+            Label label = Label.label(group.getKey());
+            Set<Long> assigned = labelAssigned.getOrDefault(group.getKey(), Collections.emptySet());
+            Set<Long> removed = labelRemoved.getOrDefault(group.getKey(), Collections.emptySet());
+            for (Node node : touched.values()) {
+                long id = node.getId();
+                boolean deleted = data.isDeleted(node);
+                boolean hasLabel = !deleted && node.hasLabel(label);
+                boolean hadLabel = removed.contains(id) || (hasLabel && !assigned.contains(id));
+                if (!hadLabel && !hasLabel) continue;
+                boolean relabelled = assigned.contains(id) || removed.contains(id);
+                for (Definition model : group.getValue()) {
+                    if (!relabelled && !changes(previous.get(id), model)) continue;
+                    collect(model, node, deleted, hadLabel, hasLabel, previous.get(id), points(changed, model));
+                }
+            }
+        }
+    }
+
+    private static void collectRelationshipChanges(Models models, TransactionData data,
+                                                   Map<Definition, Points> changed) {
+        if (models.byType.isEmpty()) return;
+        Map<Long, Relationship> touched = new LinkedHashMap<>();
+        Map<Long, Map<String, Object>> previous = new HashMap<>();
+        for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+            touch(models.relationshipKeys, entry, touched, previous);
+        }
+        for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+            touch(models.relationshipKeys, entry, touched, previous);
+        }
+        if (touched.isEmpty()) return;
+
+        Set<Long> created = new HashSet<>();
+        for (Relationship relationship : data.createdRelationships()) {
+            created.add(relationship.getId());
+        }
+        for (Relationship relationship : touched.values()) {
+            //the type of a relationship never changes, only whether it existed before and exists now
+            List<Definition> group = models.byType.get(relationship.getType().name());
+            if (group == null) continue;
+            long id = relationship.getId();
+            boolean deleted = data.isDeleted(relationship);
+            for (Definition model : group) {
+                if (!changes(previous.get(id), model)) continue;
+                collect(model, relationship, deleted, !created.contains(id), !deleted, previous.get(id),
+                        points(changed, model));
+            }
+        }
+    }
+
+    private static Points points(Map<Definition, Points> changed, Definition model) {
+        return changed.computeIfAbsent(model, ignored -> new Points());
+    }
+
+    //whether the transaction changed the independent or dependent property of the model
+    private static boolean changes(Map<String, Object> previous, Definition model) {
+        return previous != null && (previous.containsKey(model.indVar) || previous.containsKey(model.depVar));
+    }
+
+    //remembers an entity whose property of some live model changed, and the value it had before
+    private static <T extends Entity> void touch(Set<String> keys, PropertyEntry<T> entry, Map<Long, T> touched,
+                                                 Map<Long, Map<String, Object>> previous) {
+        if (!keys.contains(entry.key())) return;
+        long id = entry.entity().getId();
+        touched.put(id, entry.entity());
+        previous.computeIfAbsent(id, ignored -> new HashMap<>()).put(entry.key(), entry.previouslyCommitedValue());
+    }
+
+    //removes the point an entity had before the transaction and adds the one it has now
+    private static void collect(Definition model, Entity entity, boolean deleted, boolean wasIncluded,
+                                boolean isIncluded, Map<String, Object> previous, Points points) {
+        if (previous == null) previous = new HashMap<>();
+        if (wasIncluded) {
+            Object x = previousValue(entity, deleted, previous, model.indVar);
+            Object y = previousValue(entity, deleted, previous, model.depVar);
+            if (x instanceof Number && y instanceof Number) {
+                points.removed.add(new double[]{((Number) x).doubleValue(), ((Number) y).doubleValue()});
+            }
+        }
+        if (isIncluded) {
+            Map<String, Object> current = entity.getProperties(model.indVar, model.depVar);
+            Object x = current.get(model.indVar);
+            Object y = current.get(model.depVar);
+            if (x instanceof Number && y instanceof Number) {
+                points.added.add(new double[]{((Number) x).doubleValue(), ((Number) y).doubleValue()});
+            }
+        }
+    }
+
+    //the committed value of a property, which is the current one unless the transaction changed it
+    private static Object previousValue(Entity entity, boolean deleted, Map<String, Object> previous, String key) {
+        if (previous.containsKey(key)) return previous.get(key);
+        //every property of a deleted entity shows up as removed
+        return deleted ? null : entity.getProperty(key, null);
+    }
+
+    private static boolean definitionsChanged(TransactionData data) {
+        for (LabelEntry entry : data.assignedLabels()) {
+            if (entry.label().name().equals(LINREG.name())) return true;
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            if (entry.label().name().equals(LINREG.name())) return true;
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (DEFINITION.contains(entry.key()) && !data.isDeleted(entry.entity()) && entry.entity().hasLabel(LINREG)) {
+                return true;
+            }
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (DEFINITION.contains(entry.key()) && !data.isDeleted(entry.entity()) && entry.entity().hasLabel(LINREG)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Returns the live models, reading them if needed. Models read by a transaction that changes the definitions
+    itself include its uncommitted changes, so they are used but not kept.
+     */
+    private Models models(boolean keep) {
+        long reading;
+        synchronized (this) {
+            if (models != null) return models;
+            reading = generation;
+        }
+
+        Models read = new Models();
+        try (ResourceIterator<Node> nodes = db.findNodes(LINREG, LIVE, true)) {
+            while (nodes.hasNext()) {
+                Definition definition = Definition.of(nodes.next());
+                if (definition != null) read.add(definition);
+            }
+        }
+
+        synchronized (this) {
+            if (keep && generation == reading) models = read;
+        }
+        return read;
+    }
+
+    private synchronized void invalidate() {
+        models = null;
+        generation++;
+    }
+
+    //the live models grouped by the label or relationship type they are fitted on
+    private static final class Models {
+        final Map<String, List<Definition>> byLabel = new HashMap<>();
+        final Map<String, List<Definition>> byType = new HashMap<>();
+        //independent and dependent properties of the models on nodes, and of those on relationships
+        final Set<String> nodeKeys = new HashSet<>();
+        final Set<String> relationshipKeys = new HashSet<>();
+
+        void add(Definition model) {
+            (model.node ? byLabel : byType).computeIfAbsent(model.label, ignored -> new ArrayList<>()).add(model);
+            Set<String> keys = model.node ? nodeKeys : relationshipKeys;
+            keys.add(model.indVar);
+            keys.add(model.depVar);
+        }
+
+        boolean isEmpty() {
+            return byLabel.isEmpty() && byType.isEmpty();
+        }
+    }
+
+    //what a transaction counted itself under in beforeCommit, handed to afterCommit or afterRollback
+    static final class Commit {
+        //labels and types the transaction changes, null if it was counted without looking them up
+        final Set<String> keys;
+        boolean redefined;
+
+        Commit(Set<String> keys) {
+            this.keys = keys;
+        }
+    }
+
+    //points a transaction removes from and adds to one live model
+    private static final class Points {
+        final List<double[]> removed = new ArrayList<>();
+        final List<double[]> added = new ArrayList<>();
+    }
+
+    //what a live model is fitted on, as stored on its LinReg node
+    private static final class Definition {
+        final long nodeId;
+        final String label;
+        final String indVar;
+        final String depVar;
+        final boolean node;
+
+        private Definition(long nodeId, String label, String indVar, String depVar, boolean node) {
+            this.nodeId = nodeId;
+            this.label = label;
+            this.indVar = indVar;
+            this.depVar = depVar;
+            this.node = node;
+        }
+
+        static Definition of(Node modelNode) {
+            Map<String, Object> properties = modelNode.getProperties("label", "indVar", "depVar", "dataSource");
+            Object label = properties.get("label");
+            Object indVar = properties.get("indVar");
+            Object depVar = properties.get("depVar");
+            Object dataSource = properties.get("dataSource");
+            if (!(label instanceof String && indVar instanceof String && depVar instanceof String
+                    && dataSource instanceof String)) {
+                return null;
+            }
+            return new Definition(modelNode.getId(), (String) label, (String) indVar, (String) depVar,
+                    dataSource.equals("node"));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package example;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys to non-negative int values, so that
+ * looking up a numeric key boxes neither the key nor the value.
+ */
+final class LongIntMap {
+
+    static final int MISSING = -1;
+
+    private long[] keys = new long[32];
+    private int[] values = new int[32];
+    private int size;
+
+    LongIntMap() {
+        Arrays.fill(values, MISSING);
+    }
+
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (values[slot] == MISSING) return MISSING;
+            if (keys[slot] == key) return values[slot];
+        }
+    }
+
+    void put(long key, int value) {
+        if (value < 0) throw new IllegalArgumentException("values must not be negative");
+        //keep at most half of the slots in use so probe sequences stay short
+        if ((size + 1) * 2 > keys.length) grow();
+        if (insert(keys, values, key, value)) size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] newKeys = new long[keys.length * 2];
+        int[] newValues = new int[values.length * 2];
+        Arrays.fill(newValues, MISSING);
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != MISSING) insert(newKeys, newValues, keys[i], values[i]);
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    //returns true if the key was not in the table yet
+    private static boolean insert(long[] keys, int[] values, long key, int value) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (values[slot] == MISSING) {
+                keys[slot] = key;
+                values[slot] = value;
+                return true;
+            }
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return false;
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
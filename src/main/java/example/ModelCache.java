@@ -0,0 +1,212 @@
+package example;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Bounded LRU cache of deserialized models, keyed by the ID property of their
+ * LinReg node, with one cache per database.
+ *
+ * Every cached model is tagged with the id of its node and the value of the
+ * node's modelVersion property when it was cached. Procedures that change a
+ * model bump modelVersion in the same transaction and put the new model in the
+ * cache, so a lookup only hits when the node still carries the version the
+ * cached model was built from. If that transaction rolls back, the version on
+ * the node no longer matches and the entry is simply never used.
+ *
+ * Changes made to LinReg nodes any other way are caught by a transaction event
+ * handler, which drops the affected entries once the change is committed.
+ */
+final class ModelCache {
+
+    static final String VERSION = "modelVersion";
+    //property removed from a model node to lock it, never set
+    private static final String LOCK = "modelLock";
+
+    private static final Label LINREG = Label.label("LinReg");
+    private static final int DEFAULT_CAPACITY = 128;
+
+    //one per running database
+    private static final PerDatabase<ModelCache> CACHES = new PerDatabase<>(db -> {
+        ModelCache cache = new ModelCache(Integer.getInteger("example.regression.modelCacheSize", DEFAULT_CAPACITY));
+        db.registerTransactionEventHandler(cache.new Invalidation());
+        return cache;
+    });
+
+    private final int capacity;
+    private final LinkedHashMap<Long, Entry> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    private ModelCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= ModelCache.this.capacity) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    //returns the cache of the database, registering its invalidation handler on first use
+    static ModelCache forDatabase(GraphDatabaseService db) {
+        return CACHES.get(db);
+    }
+
+    /* Takes the write lock of a model node in the transaction of the calling thread, which holds it until it commits
+    or rolls back. Removing a property locks the node like any other change, and removing one that is never set
+    leaves it as it was. Used by whatever reads a stored model, changes it and writes it back, so no other
+    transaction can store its own change in between.
+     */
+    static void lock(Node modelNode) {
+        modelNode.removeProperty(LOCK);
+    }
+
+    /* Returns a copy of the cached model for modelID, or null if there is none or it was built from a different node
+    or version. The copy can be changed freely.
+     */
+    synchronized SimpleLinearModel get(long modelID, long nodeId, long version) {
+        Entry entry = entries.get(modelID);
+        if (entry == null || entry.nodeId != nodeId || entry.version != version) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.model.copy();
+    }
+
+    //same as get, but returns the cached model itself, which callers may only predict with
+    synchronized SimpleLinearModel peek(long modelID, long nodeId, long version) {
+        Entry entry = entries.get(modelID);
+        if (entry == null || entry.nodeId != nodeId || entry.version != version) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.model;
+    }
+
+    //id of the node the model for modelID was cached from, or -1 if it isn't cached
+    synchronized long nodeId(long modelID) {
+        Entry entry = entries.get(modelID);
+        return entry == null ? -1 : entry.nodeId;
+    }
+
+    //caches a model, which must not be changed afterwards
+    synchronized void put(long modelID, long nodeId, long version, SimpleLinearModel model) {
+        entries.put(modelID, new Entry(nodeId, version, model));
+    }
+
+    synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, invalidations, entries.size(), capacity);
+    }
+
+    //drops the entry for modelID unless it was cached from the given version, which the committed node now carries
+    private synchronized void invalidate(long modelID, Long committedVersion) {
+        Entry entry = entries.get(modelID);
+        if (entry == null) return;
+        if (committedVersion != null && entry.version == committedVersion) return;
+        entries.remove(modelID);
+        invalidations++;
+    }
+
+    private static final class Entry {
+        final long nodeId;
+        final long version;
+        final SimpleLinearModel model;
+
+        Entry(long nodeId, long version, SimpleLinearModel model) {
+            this.nodeId = nodeId;
+            this.version = version;
+            this.model = model;
+        }
+    }
+
+    static final class Stats {
+        final long hits;
+        final long misses;
+        final long evictions;
+        final long invalidations;
+        final long size;
+        final long capacity;
+
+        Stats(long hits, long misses, long evictions, long invalidations, long size, long capacity) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.size = size;
+            this.capacity = capacity;
+        }
+    }
+
+    /* Collects the model IDs of LinReg nodes changed by a transaction and drops their cache entries once the
+    transaction has committed. A change that comes with a new modelVersion keeps an entry cached from exactly that
+    version, any other change to the node drops the entry.
+     */
+    private final class Invalidation extends TransactionEventHandler.Adapter<Map<Long, Long>> {
+
+        @Override
+        public Map<Long, Long> beforeCommit(TransactionData data) {
+            Set<Long> versioned = new HashSet<>();
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (entry.key().equals(VERSION)) versioned.add(entry.entity().getId());
+            }
+
+            Map<Long, Long> changed = new HashMap<>();
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                collect(data, entry, versioned, changed);
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                collect(data, entry, versioned, changed);
+            }
+            return changed;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Map<Long, Long> changed) {
+            if (changed == null) return;
+            for (Map.Entry<Long, Long> entry : changed.entrySet()) {
+                invalidate(entry.getKey(), entry.getValue());
+            }
+        }
+
+        //maps the model ID of a changed node to its new version, or to null if its entry must go in any case
+        private void collect(TransactionData data, PropertyEntry<Node> entry, Set<Long> versioned,
+                             Map<Long, Long> changed) {
+            //a node that is deleted or moves to a different ID leaves its old one behind
+            if (entry.key().equals("ID") && entry.previouslyCommitedValue() instanceof Number) {
+                changed.put(((Number) entry.previouslyCommitedValue()).longValue(), null);
+            }
+
+            Node node = entry.entity();
+            if (data.isDeleted(node) || !node.hasLabel(LINREG)) return;
+            Object id = node.getProperty("ID", null);
+            if (!(id instanceof Number)) return;
+            long modelID = ((Number) id).longValue();
+            if (changed.containsKey(modelID) && changed.get(modelID) == null) return;
+
+            Object version = node.getProperty(VERSION, null);
+            if (versioned.contains(node.getId()) && version instanceof Number) {
+                changed.put(modelID, ((Number) version).longValue());
+            } else {
+                changed.put(modelID, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package example;
+
+/**
+ * Points to remove from and add to a stored model, read by updateRegression
+ * before the model is locked.
+ *
+ * The points are kept as two models of their own, one of the points removed
+ * and one of the points added. The sums of a model only depend on the points
+ * it holds, so subtracting the one and appending the other to whatever model
+ * is stored when the lock is finally taken gives the same model, up to
+ * rounding, no matter in which order concurrent updates get there. Merging
+ * costs the same for any number of points. The expensive part, running the
+ * queries, therefore never waits on the lock, and an update that commits in
+ * between is not lost.
+ */
+final class ModelDelta {
+
+    private final SimpleLinearModel removed = new SimpleLinearModel();
+    private final SimpleLinearModel added = new SimpleLinearModel();
+
+    void remove(double x, double y) {
+        removed.addData(x, y);
+    }
+
+    void add(double x, double y) {
+        added.addData(x, y);
+    }
+
+    //removes, then adds the points, the same order as the queries of updateRegression
+    void applyTo(SimpleLinearModel R) {
+        if (removed.getN() > R.getN()) {
+            throw new RuntimeException("not enough data remaining to create a model, process aborted");
+        }
+        R.subtract(removed);
+        R.append(added);
+    }
+}
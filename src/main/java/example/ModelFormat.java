@@ -0,0 +1,200 @@
+package example;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary encoding of the models stored in the serializedModel property of
+ * LinReg nodes. Every model is a fixed layout of little-endian fields behind a
+ * two byte header, written and read without reflection:
+ *
+ * <pre>
+ * byte    format version (1)
+ * byte    model type (1 = simple, 2 = multiple)
+ *
+ * simple, 67 bytes in total:
+ * byte    flags, bit 0 set if the model has an intercept
+ * long    n
+ * double  sumX, sumXX, sumY, sumYY, sumXY, xbar, ybar
+ *
+ * multiple, 14 + 8 * ((p + 1) + (p + 1) * (p + 2) / 2) bytes for p independent variables:
+ * int     p
+ * long    n
+ * double  means of x1 .. xp and y
+ * double  upper triangle of their co-moment matrix, row by row
+ * </pre>
+ *
+ * Simple models stored by earlier versions as a Java serialized
+ * SimpleRegression start with the serialization stream magic, which no format
+ * version does. They are still read, and are written in this format the next
+ * time they are stored. Multiple models are only read in this format.
+ */
+final class ModelFormat {
+
+    static final byte VERSION = 1;
+    static final byte SIMPLE = 1;
+    static final byte MULTIPLE = 2;
+
+    private static final int HEADER = 2;
+    private static final int SIMPLE_SIZE = HEADER + 1 + 8 + 7 * 8;
+    private static final byte HAS_INTERCEPT = 1;
+
+    //first two bytes of every Java serialization stream
+    private static final int JAVA_MAGIC_0 = 0xAC;
+    private static final int JAVA_MAGIC_1 = 0xED;
+
+    private ModelFormat() {
+    }
+
+    static byte[] write(SimpleLinearModel model) {
+        ByteBuffer buffer = header(SIMPLE_SIZE, SIMPLE);
+        buffer.put(model.hasIntercept() ? HAS_INTERCEPT : 0);
+        buffer.putLong(model.getN());
+        buffer.putDouble(model.getSumX());
+        buffer.putDouble(model.getSumXX());
+        buffer.putDouble(model.getSumY());
+        buffer.putDouble(model.getSumYY());
+        buffer.putDouble(model.getSumXY());
+        buffer.putDouble(model.getXbar());
+        buffer.putDouble(model.getYbar());
+        return buffer.array();
+    }
+
+    static byte[] write(MultipleLinearModel model) {
+        double[] means = model.getMeans();
+        double[] comoments = model.getComoments();
+        ByteBuffer buffer = header(HEADER + 4 + 8 + 8 * (means.length + comoments.length), MULTIPLE);
+        buffer.putInt(model.getFeatures());
+        buffer.putLong(model.getN());
+        for (double mean : means) buffer.putDouble(mean);
+        for (double comoment : comoments) buffer.putDouble(comoment);
+        return buffer.array();
+    }
+
+    //reads a model of either type, the result is a SimpleLinearModel or a MultipleLinearModel
+    static Object read(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER) {
+            throw new RuntimeException("stored model is empty or truncated");
+        }
+        if ((bytes[0] & 0xFF) == JAVA_MAGIC_0 && (bytes[1] & 0xFF) == JAVA_MAGIC_1) {
+            return readJavaSerialized(bytes);
+        }
+        if (bytes[0] != VERSION) {
+            throw new RuntimeException("unsupported stored model format version " + bytes[0]);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, HEADER, bytes.length - HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            switch (bytes[1]) {
+                case SIMPLE:
+                    return readSimple(buffer);
+                case MULTIPLE:
+                    return readMultiple(buffer);
+                default:
+                    throw new RuntimeException("unknown stored model type " + bytes[1]);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new RuntimeException("stored model is truncated or corrupt");
+        }
+    }
+
+    static SimpleLinearModel readSimple(byte[] bytes) {
+        Object model = read(bytes);
+        if (!(model instanceof SimpleLinearModel)) {
+            throw new RuntimeException("stored model is not a single variable model");
+        }
+        return (SimpleLinearModel) model;
+    }
+
+    static MultipleLinearModel readMultiple(byte[] bytes) {
+        Object model = read(bytes);
+        if (!(model instanceof MultipleLinearModel)) {
+            throw new RuntimeException("stored model is not a multiple variable model");
+        }
+        return (MultipleLinearModel) model;
+    }
+
+    private static ByteBuffer header(int size, byte type) {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(VERSION);
+        buffer.put(type);
+        return buffer;
+    }
+
+    private static SimpleLinearModel readSimple(ByteBuffer buffer) {
+        boolean hasIntercept = (buffer.get() & HAS_INTERCEPT) != 0;
+        long n = buffer.getLong();
+        return new SimpleLinearModel(hasIntercept, n, buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+                buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+    }
+
+    private static MultipleLinearModel readMultiple(ByteBuffer buffer) {
+        int features = buffer.getInt();
+        long n = buffer.getLong();
+        if (features < 1 || features + 1 > buffer.remaining() / 8) {
+            throw new IllegalArgumentException("invalid number of independent variables " + features);
+        }
+        double[] means = new double[features + 1];
+        double[] comoments = new double[(features + 1) * (features + 2) / 2];
+        for (int i = 0; i < means.length; i++) means[i] = buffer.getDouble();
+        for (int i = 0; i < comoments.length; i++) comoments[i] = buffer.getDouble();
+        return new MultipleLinearModel(features, n, means, comoments);
+    }
+
+    //migrates a simple model stored with Java serialization
+    private static Object readJavaSerialized(byte[] bytes) {
+        try (ObjectInputStream in = new LegacyInputStream(new ByteArrayInputStream(bytes))) {
+            Object model = in.readObject();
+            if (model instanceof LegacySimpleRegression) return ((LegacySimpleRegression) model).toModel();
+            throw new RuntimeException("stored model has an unknown type " + model.getClass().getName());
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException("stored model could not be deserialized: " + e.getMessage());
+        }
+    }
+
+    /* Reads the fields of a serialized SimpleRegression into LegacySimpleRegression, which declares the same fields.
+    SimpleRegression keeps its running sums private, this is the only way to get them back exactly.
+     */
+    private static final class LegacyInputStream extends ObjectInputStream {
+        private static final String SIMPLE_REGRESSION = "org.apache.commons.math3.stat.regression.SimpleRegression";
+
+        LegacyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass descriptor = super.readClassDescriptor();
+            if (descriptor.getName().equals(SIMPLE_REGRESSION)) {
+                return ObjectStreamClass.lookup(LegacySimpleRegression.class);
+            }
+            return descriptor;
+        }
+    }
+
+    //serialized form of commons-math3 SimpleRegression
+    private static final class LegacySimpleRegression implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private double sumX;
+        private double sumXX;
+        private double sumY;
+        private double sumYY;
+        private double sumXY;
+        private long n;
+        private double xbar;
+        private double ybar;
+        private boolean hasIntercept;
+
+        SimpleLinearModel toModel() {
+            return new SimpleLinearModel(hasIntercept, n, sumX, sumXX, sumY, sumYY, sumXY, xbar, ybar);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package example;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+/**
+ * Ordinary least squares with an intercept over any number of independent
+ * variables, fitted from sufficient statistics only.
+ *
+ * The model keeps the count, the means of every variable and the centered
+ * co-moment matrix of (x1 .. xp, y), which is X^T X and X^T y taken around the
+ * means. Points are added and removed with the same updating formulas
+ * {@link org.apache.commons.math3.stat.regression.SimpleRegression} uses, so
+ * the design matrix is never materialized and memory only depends on the
+ * number of variables. Two models can be merged, which lets parallel scan
+ * workers fit their share of the data separately.
+ *
+ * Models are stored with {@link ModelFormat}.
+ */
+final class MultipleLinearModel {
+
+    //number of independent variables
+    private final int features;
+    private long n;
+    //means of x1 .. xp and y
+    private final double[] means;
+    //upper triangle of the co-moment matrix of x1 .. xp and y, row by row
+    private final double[] comoments;
+
+    //solution for the current data, recomputed after the data changes
+    private double[] coefficients;
+    private double[] delta;
+
+    MultipleLinearModel(int features) {
+        this.features = features;
+        this.means = new double[features + 1];
+        this.comoments = new double[(features + 1) * (features + 2) / 2];
+    }
+
+    //restores a model from its stored state
+    MultipleLinearModel(int features, long n, double[] means, double[] comoments) {
+        if (means.length != features + 1 || comoments.length != (features + 1) * (features + 2) / 2) {
+            throw new IllegalArgumentException("stored state does not match " + features + " independent variables");
+        }
+        this.features = features;
+        this.n = n;
+        this.means = means;
+        this.comoments = comoments;
+    }
+
+    void addData(double[] x, double y) {
+        double[] d = deviation(x, y);
+        n++;
+        double weight = (n - 1.0) / n;
+        for (int i = 0; i < d.length; i++) {
+            means[i] += d[i] / n;
+        }
+        updateComoments(d, weight);
+    }
+
+    void removeData(double[] x, double y) {
+        if (n == 0) return;
+        if (n == 1) {
+            clear();
+            return;
+        }
+        double[] d = deviation(x, y);
+        double weight = -n / (n - 1.0);
+        for (int i = 0; i < d.length; i++) {
+            means[i] -= d[i] / (n - 1.0);
+        }
+        updateComoments(d, weight);
+        n--;
+    }
+
+    //adds all the data of another model with the same variables
+    void append(MultipleLinearModel other) {
+        if (other.features != features) {
+            throw new IllegalArgumentException("models have a different number of independent variables");
+        }
+        if (other.n == 0) return;
+        long total = n + other.n;
+        double weight = n * (double) other.n / total;
+        double[] d = new double[means.length];
+        for (int i = 0; i < d.length; i++) {
+            d[i] = other.means[i] - means[i];
+            means[i] += d[i] * other.n / total;
+        }
+        for (int i = 0; i < comoments.length; i++) {
+            comoments[i] += other.comoments[i];
+        }
+        n = total;
+        updateComoments(d, weight);
+    }
+
+    int getFeatures() {
+        return features;
+    }
+
+    long getN() {
+        return n;
+    }
+
+    //state read by ModelFormat, the arrays are not copied and must not be changed
+    double[] getMeans() {
+        return means;
+    }
+
+    double[] getComoments() {
+        return comoments;
+    }
+
+    //slopes of the independent variables, in the order they were given
+    double[] getCoefficients() {
+        return solve().clone();
+    }
+
+    double getIntercept() {
+        double[] beta = solve();
+        double intercept = means[features];
+        for (int i = 0; i < features; i++) {
+            intercept -= beta[i] * means[i];
+        }
+        return intercept;
+    }
+
+    double predict(double[] x) {
+        double[] beta = solve();
+        double y = getIntercept();
+        for (int i = 0; i < features; i++) {
+            y += beta[i] * x[i];
+        }
+        return y;
+    }
+
+    //share of the variance of y explained by the model
+    double getRSquare() {
+        double[] beta = solve();
+        double explained = 0;
+        for (int i = 0; i < features; i++) {
+            explained += beta[i] * comoment(i, features);
+        }
+        return explained / comoment(features, features);
+    }
+
+    private double[] solve() {
+        if (coefficients != null) return coefficients;
+        if (n <= features) {
+            throw new RuntimeException("not enough data to fit " + features + " independent variables");
+        }
+
+        RealMatrix xx = new Array2DRowRealMatrix(features, features);
+        double[] xy = new double[features];
+        for (int i = 0; i < features; i++) {
+            for (int j = 0; j < features; j++) {
+                xx.setEntry(i, j, comoment(i, j));
+            }
+            xy[i] = comoment(i, features);
+        }
+        try {
+            coefficients = new QRDecomposition(xx).getSolver().solve(new ArrayRealVector(xy, false)).toArray();
+        } catch (SingularMatrixException e) {
+            throw new RuntimeException("independent variables are linearly dependent, no model can be fit");
+        }
+        return coefficients;
+    }
+
+    private double[] deviation(double[] x, double y) {
+        if (delta == null) delta = new double[means.length];
+        for (int i = 0; i < features; i++) {
+            delta[i] = x[i] - means[i];
+        }
+        delta[features] = y - means[features];
+        return delta;
+    }
+
+    private void updateComoments(double[] d, double weight) {
+        coefficients = null;
+        int index = 0;
+        for (int i = 0; i < d.length; i++) {
+            for (int j = i; j < d.length; j++) {
+                comoments[index++] += weight * d[i] * d[j];
+            }
+        }
+    }
+
+    private double comoment(int i, int j) {
+        if (i > j) return comoment(j, i);
+        //row i of the upper triangle starts after i rows of decreasing length
+        int size = means.length;
+        return comoments[i * size - i * (i - 1) / 2 + (j - i)];
+    }
+
+    private void clear() {
+        n = 0;
+        Arrays.fill(means, 0);
+        Arrays.fill(comoments, 0);
+        coefficients = null;
+    }
+}
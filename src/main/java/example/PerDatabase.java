@@ -0,0 +1,74 @@
+package example;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * One instance of some in-memory state per running database, keyed by store
+ * directory.
+ *
+ * The instance is created the first time a database asks for it, together
+ * with a kernel event handler that forgets it when the database shuts down. A
+ * restarted database gets a new instance, and registers its handlers again.
+ */
+final class PerDatabase<T> {
+
+    private final ConcurrentMap<String, T> instances = new ConcurrentHashMap<>();
+    private final Function<GraphDatabaseService, T> factory;
+    private final Consumer<T> onShutdown;
+
+    PerDatabase(Function<GraphDatabaseService, T> factory) {
+        this(factory, instance -> { });
+    }
+
+    //onShutdown is called with the instance of a database once it has been forgotten
+    PerDatabase(Function<GraphDatabaseService, T> factory, Consumer<T> onShutdown) {
+        this.factory = factory;
+        this.onShutdown = onShutdown;
+    }
+
+    //returns the instance of the database, creating it on first use
+    T get(GraphDatabaseService db) {
+        String storeDir = ((GraphDatabaseAPI) db).getStoreDir().getAbsolutePath();
+        return instances.computeIfAbsent(storeDir, dir -> {
+            T instance = factory.apply(db);
+            db.registerKernelEventHandler(new Shutdown(dir));
+            return instance;
+        });
+    }
+
+    private final class Shutdown implements KernelEventHandler {
+        private final String storeDir;
+
+        Shutdown(String storeDir) {
+            this.storeDir = storeDir;
+        }
+
+        @Override
+        public void beforeShutdown() {
+            T instance = instances.remove(storeDir);
+            if (instance != null) onShutdown.accept(instance);
+        }
+
+        @Override
+        public void kernelPanic(ErrorState error) {
+        }
+
+        @Override
+        public Object getResource() {
+            return null;
+        }
+
+        @Override
+        public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+            return ExecutionOrder.DOESNT_MATTER;
+        }
+    }
+}
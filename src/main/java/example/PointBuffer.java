@@ -0,0 +1,44 @@
+package example;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of (entity id, x) pairs kept in primitive arrays. Used to remember
+ * the entities that need a prediction until the model they depend on is built,
+ * without holding on to entity objects.
+ */
+final class PointBuffer {
+
+    private long[] ids = new long[64];
+    private double[] xs = new double[64];
+    private int size;
+
+    void add(long id, double x) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            xs = Arrays.copyOf(xs, size * 2);
+        }
+        ids[size] = id;
+        xs[size] = x;
+        size++;
+    }
+
+    //appends the points of another buffer, used to combine the buffers of parallel scan workers
+    void addAll(PointBuffer other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.ids[i], other.xs[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    long id(int i) {
+        return ids[i];
+    }
+
+    double x(int i) {
+        return xs[i];
+    }
+}
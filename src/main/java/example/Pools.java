@@ -0,0 +1,62 @@
+package example;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker threads shared by all procedure calls. Work that needs its own
+ * transaction has to run here, since a transaction started on the calling
+ * thread would just join the procedure's transaction.
+ *
+ * The pool never grows beyond the number of cores; callers limit how many tasks
+ * they keep in flight so the queue stays short.
+ */
+final class Pools {
+
+    static final ExecutorService DEFAULT = newPool("regression-worker", Runtime.getRuntime().availableProcessors());
+
+    //runs background regression jobs, which use DEFAULT for their own workers, so jobs never wait on each other's tasks
+    static final ExecutorService JOBS = newPool("regression-job",
+            Math.max(1, Integer.getInteger("example.regression.jobThreads", 2)));
+
+    private Pools() {
+    }
+
+    //waits for a task submitted to one of the pools, rethrowing its failure unchecked
+    static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for a worker", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    //a thread of its own, for pipeline stages that must not run concurrently with themselves
+    static ExecutorService newSingleThreadExecutor(String name) {
+        return newPool(name, 1);
+    }
+
+    private static ExecutorService newPool(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
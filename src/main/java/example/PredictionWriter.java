@@ -0,0 +1,351 @@
+package example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleUnaryOperator;
+
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+
+/**
+ * Stores predicted values under newVarName, either directly in the calling
+ * transaction (batch size 0) or through a pipeline of batches.
+ *
+ * In the pipeline the calling thread only collects ids, and x values where
+ * the caller has them already. Full batches are handed to the shared pool,
+ * where up to concurrency workers read the x values of their ids, each in a
+ * read transaction of its own, and compute the predictions in parallel. A
+ * single writer thread then commits each batch in its own transaction.
+ * Reading, computing and writing overlap, and since a new batch is only
+ * started when one of the in-flight batches has been written, memory does not
+ * grow with the number of entities mapped.
+ *
+ * Batches that are committed stay committed even if the calling transaction
+ * later fails.
+ *
+ * Batches can't be used once the calling transaction has changed data, see
+ * checkBatches: a batch would wait for the locks the caller holds while the
+ * caller waits for the batch, which Neo4j can't detect as a deadlock, and it
+ * wouldn't see entities the caller created.
+ *
+ * With skipUnchanged, the value already stored under newVarName is read first
+ * and the prediction is only written if it differs by more than the
+ * tolerance, so remapping after a small model update leaves most entities,
+ * and the transaction log, untouched.
+ */
+final class PredictionWriter {
+
+    private final GraphDatabaseService db;
+    private final Log log;
+    private final String newVarName;
+    private final DoubleUnaryOperator model;
+    private final int batchSize;
+    //property the x values of entities written without one are read from, null if callers always pass x
+    private String indVar;
+
+    //limits the number of batches between the calling thread and the writer
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private ExecutorService writerStage;
+
+    private Batch current;
+
+    private long direct;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long skipped;
+    private final AtomicLong unread = new AtomicLong();
+    private long directUnchanged;
+    private final AtomicLong unchanged = new AtomicLong();
+    //tolerances of skipUnchanged, negative while it is off
+    private double epsilon = -1;
+    private double relativeEpsilon = -1;
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    PredictionWriter(GraphDatabaseService db, Log log, String newVarName, DoubleUnaryOperator model, int batchSize,
+                     int concurrency) {
+        this.db = db;
+        this.log = log;
+        this.newVarName = newVarName;
+        this.model = model;
+        this.batchSize = batchSize;
+        this.maxInFlight = concurrency;
+        this.inFlight = new Semaphore(concurrency);
+    }
+
+    /* Fails if batchSize is greater than 0 and the calling transaction has already changed data. Procedures call it
+    before they change anything themselves, their own changes are never written by a batch.
+     */
+    static void checkBatches(GraphDatabaseService db, int batchSize) {
+        if (batchSize == 0) return;
+        KernelTransaction caller = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class).getKernelTransactionBoundToThisThread(false);
+        if (caller instanceof TxStateHolder && ((TxStateHolder) caller).hasTxStateWithChanges()) {
+            throw new RuntimeException("batchSize can't be used in a transaction that has already changed data, " +
+                    "commit the changes first or leave batchSize out");
+        }
+    }
+
+    /* Leaves stored values that are within epsilon, or within relativeEpsilon times their size, of the prediction.
+    A negative tolerance isn't used.
+     */
+    PredictionWriter skipUnchanged(double epsilon, double relativeEpsilon) {
+        this.epsilon = epsilon;
+        this.relativeEpsilon = relativeEpsilon;
+        return this;
+    }
+
+    //reads the x values of entities handed to write(Entity) from indVar
+    PredictionWriter readingX(String indVar) {
+        this.indVar = indVar;
+        return this;
+    }
+
+    boolean readsX() {
+        return indVar != null;
+    }
+
+    /* Stores the prediction for an entity whose x value isn't read yet. In batch mode it is read by the worker that
+    predicts the batch, an entity without a numeric value of indVar is skipped.
+     */
+    void write(Entity entity) {
+        if (indVar == null) {
+            throw new IllegalStateException("no property to read x values from");
+        }
+        if (batchSize == 0) {
+            Object x = entity.getProperty(indVar, null);
+            if (x instanceof Number) {
+                write(entity, ((Number) x).doubleValue());
+            } else {
+                skipped++;
+            }
+        } else {
+            add(entity.getId(), entity instanceof Node, false, 0);
+        }
+    }
+
+    //stores the prediction for x on an entity returned by a query
+    void write(Entity entity, double x) {
+        if (batchSize == 0) {
+            double value = model.applyAsDouble(x);
+            if (unchanged(entity, value)) {
+                directUnchanged++;
+            } else {
+                entity.setProperty(newVarName, value);
+                direct++;
+            }
+        } else {
+            add(entity.getId(), entity instanceof Node, true, x);
+        }
+    }
+
+    //stores the prediction for x on an entity collected by id during a scan
+    void write(String dataSource, long id, double x) {
+        if (batchSize == 0) {
+            write(EntityScan.entity(db, dataSource, id), x);
+        } else {
+            add(id, dataSource.equals("node"), true, x);
+        }
+    }
+
+    //counts a row that could not be mapped, e.g. because its x value is not a number
+    void skip() {
+        skipped++;
+    }
+
+    /* Hands over the last batch and waits until every batch has been written. Only called once all rows were
+    handed over: after a failure, batches already handed over are still written, and the failure is left to
+    propagate as it is.
+     */
+    PredictionWriter finish() {
+        if (current != null && current.size > 0) dispatch(current);
+        current = null;
+        acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        if (writerStage != null) {
+            writerStage.shutdown();
+            writerStage = null;
+        }
+
+        Throwable failure = error.get();
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure != null) throw new RuntimeException(failure);
+        return this;
+    }
+
+    long written() {
+        return direct + written.get();
+    }
+
+    long failed() {
+        return failed.get();
+    }
+
+    long skipped() {
+        return skipped + unread.get();
+    }
+
+    //predictions not written because the stored value was close enough
+    long unchanged() {
+        return directUnchanged + unchanged.get();
+    }
+
+    private boolean unchanged(Entity entity, double value) {
+        if (epsilon < 0 && relativeEpsilon < 0) return false;
+        Object stored = entity.getProperty(newVarName, null);
+        if (!(stored instanceof Number)) return false;
+        double previous = ((Number) stored).doubleValue();
+        double difference = Math.abs(value - previous);
+        return difference <= epsilon || difference <= relativeEpsilon * Math.abs(previous);
+    }
+
+    private void add(long id, boolean node, boolean hasX, double x) {
+        if (current == null) current = new Batch(batchSize);
+        current.add(id, node, hasX, x);
+        if (current.size == batchSize) {
+            dispatch(current);
+            current = null;
+        }
+    }
+
+    //reads and predicts on the shared pool, then writes on the writer stage, in that order for each batch
+    private void dispatch(Batch batch) {
+        acquire(1);
+        if (writerStage == null) writerStage = Pools.newSingleThreadExecutor("regression-writer");
+
+        CompletableFuture.runAsync(() -> predict(batch), Pools.DEFAULT)
+                .thenRunAsync(() -> writeBatch(batch), writerStage)
+                .whenComplete((ignored, failure) -> {
+                    if (failure instanceof CompletionException && failure.getCause() != null) {
+                        failure = failure.getCause();
+                    }
+                    if (failure != null) error.compareAndSet(null, failure);
+                    inFlight.release();
+                });
+    }
+
+    private void acquire(int permits) {
+        try {
+            inFlight.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while writing predicted values", e);
+        }
+    }
+
+    //runs on a worker, reads the x values the batch doesn't have yet and replaces every x by its prediction
+    private void predict(Batch batch) {
+        if (batch.unread) {
+            long missing = 0;
+            try (Transaction tx = db.beginTx()) {
+                for (int i = 0; i < batch.size; i++) {
+                    if (batch.hasX[i]) continue;
+                    Object x;
+                    try {
+                        Entity entity = batch.isNode[i] ? db.getNodeById(batch.ids[i])
+                                : db.getRelationshipById(batch.ids[i]);
+                        x = entity.getProperty(indVar, null);
+                    } catch (NotFoundException e) {
+                        //deleted since it was returned, left to the writer, which counts it as failed
+                        batch.hasX[i] = true;
+                        continue;
+                    }
+                    if (x instanceof Number) {
+                        batch.values[i] = ((Number) x).doubleValue();
+                        batch.hasX[i] = true;
+                    } else {
+                        missing++;
+                    }
+                }
+                tx.success();
+            }
+            unread.addAndGet(missing);
+        }
+        for (int i = 0; i < batch.size; i++) {
+            if (batch.hasX[i]) batch.values[i] = model.applyAsDouble(batch.values[i]);
+        }
+    }
+
+    //runs on the writer thread, commits one batch in its own transaction
+    private void writeBatch(Batch batch) {
+        long batchWritten = 0;
+        long batchFailed = 0;
+        long batchUnchanged = 0;
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < batch.size; i++) {
+                //no numeric x was found, already counted as skipped
+                if (!batch.hasX[i]) continue;
+                try {
+                    Entity entity = batch.isNode[i] ? db.getNodeById(batch.ids[i]) : db.getRelationshipById(batch.ids[i]);
+                    if (unchanged(entity, batch.values[i])) {
+                        batchUnchanged++;
+                        continue;
+                    }
+                    entity.setProperty(newVarName, batch.values[i]);
+                    batchWritten++;
+                } catch (NotFoundException e) {
+                    //deleted since it was read
+                    batchFailed++;
+                }
+            }
+            tx.success();
+        } catch (RuntimeException e) {
+            log.warn("Could not commit a batch of %d predicted values: %s", batch.size, e.getMessage());
+            failed.addAndGet(batch.readable());
+            return;
+        }
+        written.addAndGet(batchWritten);
+        failed.addAndGet(batchFailed);
+        unchanged.addAndGet(batchUnchanged);
+    }
+
+    /* ids and x values of one batch, the x values are replaced by predictions before the batch is written. An entry
+    without an x value yet has it read by the worker, and is left out if it has none.
+     */
+    private static final class Batch {
+        final long[] ids;
+        final boolean[] isNode;
+        final boolean[] hasX;
+        final double[] values;
+        int size;
+        //whether any entry still needs its x value read
+        boolean unread;
+
+        Batch(int capacity) {
+            ids = new long[capacity];
+            isNode = new boolean[capacity];
+            hasX = new boolean[capacity];
+            values = new double[capacity];
+        }
+
+        void add(long id, boolean node, boolean x, double value) {
+            ids[size] = id;
+            isNode[size] = node;
+            hasX[size] = x;
+            values[size] = value;
+            if (!x) unread = true;
+            size++;
+        }
+
+        //number of entries with an x value, the ones the writer stores
+        int readable() {
+            int readable = 0;
+            for (int i = 0; i < size; i++) {
+                if (hasX[i]) readable++;
+            }
+            return readable;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed view over the optional configuration map accepted by the regression
+ * procedures. Unknown keys are ignored, missing keys fall back to defaults that
+ * keep the original single-transaction behaviour.
+ */
+final class RegressionConfig {
+
+    private final Map<String, Object> config;
+
+    RegressionConfig(Map<String, Object> config) {
+        this.config = config == null ? Collections.<String, Object>emptyMap() : config;
+    }
+
+    //number of predictions committed per write transaction, 0 writes everything in the calling transaction
+    int batchSize() {
+        long batchSize = getLong("batchSize", 0);
+        if (batchSize < 0 || batchSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("batchSize must be between 0 and " + Integer.MAX_VALUE);
+        }
+        return (int) batchSize;
+    }
+
+    //number of workers scanning entities in parallel, never more than the number of cores
+    int concurrency() {
+        long concurrency = getLong("concurrency", 1);
+        if (concurrency < 1) {
+            throw new RuntimeException("concurrency must be at least 1");
+        }
+        return (int) Math.min(concurrency, Runtime.getRuntime().availableProcessors());
+    }
+
+    //whether simpleRegression keeps its model current as the data it was fitted on changes
+    boolean live() {
+        return getBoolean("live", false);
+    }
+
+    //whether the streaming procedures also return entities with a known y, together with their residual
+    boolean residuals() {
+        return getBoolean("residuals", false);
+    }
+
+    //whether customRegression and updateRegression use only the first row of every entity their queries return
+    boolean distinct() {
+        return getBoolean("distinct", false);
+    }
+
+    //probability with which simpleRegression.sample reads an entity
+    double sampleRate() {
+        double sampleRate = getDouble("sampleRate", 0.1);
+        if (!(sampleRate > 0 && sampleRate <= 1)) {
+            throw new RuntimeException("sampleRate must be greater than 0 and at most 1");
+        }
+        return sampleRate;
+    }
+
+    //half-width below which both confidence intervals must fall to stop sampling, 0 samples the whole scan
+    double tolerance() {
+        double tolerance = getDouble("tolerance", 0);
+        if (!(tolerance >= 0)) {
+            throw new RuntimeException("tolerance must not be negative");
+        }
+        return tolerance;
+    }
+
+    //confidence level of the intervals reported and checked by simpleRegression.sample
+    double confidence() {
+        double confidence = getDouble("confidence", 0.95);
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new RuntimeException("confidence must be between 0 and 1");
+        }
+        return confidence;
+    }
+
+    //highest power of each independent variable that multipleRegression and simpleRegression fit on
+    int degree() {
+        long degree = getLong("degree", 1);
+        if (degree < 1 || degree > 10) {
+            throw new RuntimeException("degree must be between 1 and 10");
+        }
+        return (int) degree;
+    }
+
+    //transforms of each independent variable fitted on as additional features, 'log' and/or 'exp'
+    List<String> transforms() {
+        Object value = config.get("transforms");
+        if (value == null) return Collections.emptyList();
+        if (!(value instanceof List)) {
+            throw new RuntimeException("config value 'transforms' must be a list");
+        }
+        List<String> transforms = new ArrayList<>();
+        for (Object transform : (List<?>) value) {
+            if (!FeatureExpansion.LOG.equals(transform) && !FeatureExpansion.EXP.equals(transform)) {
+                throw new RuntimeException("unknown transform " + transform + ", acceptable values are 'log' and 'exp'");
+            }
+            if (!transforms.contains(transform)) transforms.add((String) transform);
+        }
+        return transforms;
+    }
+
+    FeatureExpansion expansion() {
+        return new FeatureExpansion(degree(), transforms());
+    }
+
+    //largest absolute change of a stored prediction that isn't written, -1 if not set
+    double epsilon() {
+        return tolerance("epsilon");
+    }
+
+    //largest change of a stored prediction relative to its size that isn't written, -1 if not set
+    double relativeEpsilon() {
+        return tolerance("relativeEpsilon");
+    }
+
+    //whether example.snapshot.load keeps the columns of the snapshot in direct memory outside the heap
+    boolean offHeap() {
+        return getBoolean("offHeap", false);
+    }
+
+    //property the predicting workers read x values from, null if mapQuery returns them
+    String indVar() {
+        Object value = config.get("indVar");
+        if (value == null) return null;
+        if (!(value instanceof String)) {
+            throw new RuntimeException("config value 'indVar' must be a string");
+        }
+        return (String) value;
+    }
+
+    //rows example.regression.estimate reads from each scan or query to measure it
+    int sampleRows() {
+        long sampleRows = getLong("sampleRows", 1000);
+        if (sampleRows < 1 || sampleRows > Integer.MAX_VALUE) {
+            throw new RuntimeException("sampleRows must be between 1 and " + Integer.MAX_VALUE);
+        }
+        return (int) sampleRows;
+    }
+
+    //heap in bytes a regression may be estimated to need, half the maximum heap unless set for the JVM or the call
+    long heapBudget() {
+        long heapBudget = getLong("heapBudget",
+                Long.getLong("example.regression.heapBudget", Runtime.getRuntime().maxMemory() / 2));
+        if (heapBudget < 1) {
+            throw new RuntimeException("heapBudget must be at least 1");
+        }
+        return heapBudget;
+    }
+
+    //seconds a regression may be estimated to run, -1 if not set
+    double timeBudget() {
+        return tolerance("timeBudget");
+    }
+
+    //whether simpleRegression, customRegression and updateRegression refuse to run if their estimate is over budget
+    boolean enforceBudget() {
+        return getBoolean("enforceBudget", false);
+    }
+
+    private double tolerance(String key) {
+        if (!config.containsKey(key)) return -1;
+        double tolerance = getDouble(key, -1);
+        if (!(tolerance >= 0)) {
+            throw new RuntimeException(key + " must not be negative");
+        }
+        return tolerance;
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        Object value = config.get(key);
+        if (value == null) return defaultValue;
+        if (!(value instanceof Boolean)) {
+            throw new RuntimeException("config value '" + key + "' must be a boolean");
+        }
+        return (Boolean) value;
+    }
+
+    private long getLong(String key, long defaultValue) {
+        Object value = config.get(key);
+        if (value == null) return defaultValue;
+        if (!(value instanceof Number)) {
+            throw new RuntimeException("config value '" + key + "' must be a number");
+        }
+        return ((Number) value).longValue();
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        Object value = config.get(key);
+        if (value == null) return defaultValue;
+        if (!(value instanceof Number)) {
+            throw new RuntimeException("config value '" + key + "' must be a number");
+        }
+        return ((Number) value).doubleValue();
+    }
+}
@@ -0,0 +1,320 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.QueryExecutionException;
+import org.neo4j.graphdb.QueryExecutionType;
+import org.neo4j.graphdb.Result;
+
+/**
+ * Estimates what a regression will cost before it runs: the rows it scans,
+ * the predictions it writes, the heap it needs at its peak and how long it
+ * takes.
+ *
+ * simpleRegression is estimated from the count store, which gives the number
+ * of entities of its label or type, and from its first sampleRows entities,
+ * which give the share of unknown points and the time per entity. The queries
+ * of customRegression and updateRegression are estimated from the row count
+ * the planner expects, and from their first sampleRows rows if they only read.
+ * Queries that write are never run by an estimate. The time per
+ * prediction written is taken from recent runs, see {@link RegressionMetrics}.
+ *
+ * The heap is what the procedures themselves hold: the points they keep until
+ * the model is fitted, the ids kept with distinct, and the transaction state of
+ * the predictions written in one transaction, which is by far the largest with
+ * a batchSize of 0. Rows a query materializes itself, for an ORDER BY or a
+ * DISTINCT, are not included. All of it is a rough guide, not a bound.
+ */
+final class RegressionEstimator {
+
+    static final String UPDATE = "updateRegression";
+
+    //transaction state of one changed property, including the entity's own state
+    private static final long TX_STATE_BYTES_PER_WRITE = 256;
+    //a buffered point, id or x and a double, with room for the array to double
+    private static final long POINT_BYTES = 32;
+    //an id kept by IdBitmap with distinct, in its sparse array containers
+    private static final long DISTINCT_BYTES_PER_ROW = 2;
+    //a slot of a PredictionWriter batch, id, value and node flag
+    private static final long BATCH_BYTES_PER_ROW = 17;
+    //time per prediction written when no run has written any yet
+    private static final double DEFAULT_WRITE_NANOS = 10_000;
+
+    private final GraphDatabaseService db;
+    private final RegressionConfig config;
+
+    RegressionEstimator(GraphDatabaseService db, RegressionConfig config) {
+        this.db = db;
+        this.config = config;
+    }
+
+    /* Estimates the named procedure called with the given arguments, by name, the same arguments as
+    example.regression.submit takes, and removeQuery and addQuery for updateRegression.
+     */
+    Estimate estimate(String procedure, Map<String, Object> arguments) {
+        if (procedure.equals(RegressionJobs.SIMPLE)) {
+            String dataSource = RegressionJobs.string(arguments, "dataSource");
+            EntityScan.checkDataSource(dataSource);
+            return simple(RegressionJobs.string(arguments, "label"), RegressionJobs.string(arguments, "indVar"),
+                    RegressionJobs.string(arguments, "depVar"), dataSource);
+        }
+        if (procedure.equals(RegressionJobs.CUSTOM)) {
+            return custom(RegressionJobs.string(arguments, "modelQuery"), optional(arguments, "mapQuery"));
+        }
+        if (procedure.equals(UPDATE)) {
+            return update(optional(arguments, "removeQuery"), optional(arguments, "addQuery"),
+                    optional(arguments, "mapQuery"));
+        }
+        throw new RuntimeException("Invalid procedure (acceptable values are '" + RegressionJobs.SIMPLE + "', '" +
+                RegressionJobs.CUSTOM + "' or '" + UPDATE + "')");
+    }
+
+    Estimate simple(String label, String indVar, String depVar, String dataSource) {
+        long total = EntityScan.count(db, dataSource, label);
+        FirstRows sample = new FirstRows(config.sampleRows());
+        long start = System.nanoTime();
+        EntityScan.sample(db, dataSource, label, indVar, depVar, sample);
+        long nanos = System.nanoTime() - start;
+
+        long sampled = sample.rows();
+        long toWrite = sampled == 0 ? 0 : Math.round((double) total * sample.unknown / sampled);
+        Estimate estimate = new Estimate(RegressionJobs.SIMPLE, total, toWrite, sampled);
+        //unknown points are buffered until the model is fitted
+        estimate.heapBytes = toWrite * POINT_BYTES + writeBytes(toWrite);
+        double scanNanos = sampled == 0 ? 0 : (double) nanos / sampled * total / config.concurrency();
+        estimate.seconds = (scanNanos + toWrite * writeNanosPerRow()) / 1e9;
+        return estimate;
+    }
+
+    Estimate custom(String modelQuery, String mapQuery) {
+        QuerySample model = sample(modelQuery, "model query is invalid", false);
+        QuerySample map = mapQuery.equals("") ? QuerySample.NONE : sample(mapQuery, "map query is invalid", true);
+        Estimate estimate = new Estimate(RegressionJobs.CUSTOM, model.rows + map.rows, map.used,
+                model.sampled + map.sampled);
+        estimate.heapBytes = (config.distinct() ? model.rows * DISTINCT_BYTES_PER_ROW : 0) + writeBytes(map.used);
+        estimate.seconds = (model.nanos + map.nanos + map.used * writeNanosPerRow()) / 1e9;
+        return estimate;
+    }
+
+    Estimate update(String removeQuery, String addQuery, String mapQuery) {
+        QuerySample remove = removeQuery.equals("") ? QuerySample.NONE
+                : sample(removeQuery, "invalid removeQuery", false);
+        QuerySample add = addQuery.equals("") ? QuerySample.NONE : sample(addQuery, "invalid addQuery", false);
+        QuerySample map = mapQuery.equals("") ? QuerySample.NONE : sample(mapQuery, "invalid mapQuery", true);
+        Estimate estimate = new Estimate(UPDATE, remove.rows + add.rows + map.rows, map.used,
+                remove.sampled + add.sampled + map.sampled);
+        //the points to remove and add are summed up in a ModelDelta as they are read, only distinct keeps ids
+        long delta = remove.used + add.used;
+        estimate.heapBytes = (config.distinct() ? delta * DISTINCT_BYTES_PER_ROW : 0) + writeBytes(map.used);
+        estimate.seconds = (remove.nanos + add.nanos + map.nanos + map.used * writeNanosPerRow()) / 1e9;
+        return estimate;
+    }
+
+    /* Heap held while writing the predictions: all of their transaction state in the calling transaction, or the
+    batches being computed and committed in batch mode.
+     */
+    private long writeBytes(long toWrite) {
+        int batchSize = config.batchSize();
+        if (batchSize == 0) return toWrite * TX_STATE_BYTES_PER_WRITE;
+        long batch = Math.min(toWrite, batchSize);
+        return batch * (BATCH_BYTES_PER_ROW + TX_STATE_BYTES_PER_WRITE) * (config.concurrency() + 1);
+    }
+
+    /* Runs the query for its first sampleRows rows. The number of rows is the planner's estimate, or the exact count
+    if the query ended within the sample. used counts the rows the procedure would use: with numeric x and y in the
+    first two columns, or an entity and a numeric x for a map query. A map query whose x values the writer reads
+    itself, see indVar, only needs the entity.
+
+    Only read-only queries are run. A query that writes would make its changes a second time when the regression runs,
+    so it is estimated from its plan alone, every row counted as used and its own time left out.
+     */
+    private QuerySample sample(String query, String message, boolean mapQuery) {
+        boolean entityOnly = mapQuery && config.indVar() != null;
+        Plan plan = plan(query, message);
+        if (plan.columns < (entityOnly ? 1 : 2)) {
+            throw new RuntimeException(message);
+        }
+        long planned = Math.round(plan.rows);
+        if (!plan.readOnly) return new QuerySample(planned, planned, 0, 0);
+
+        long rows = 0;
+        long used = 0;
+        boolean exhausted;
+        long start = System.nanoTime();
+        try (Result result = execute(query, message)) {
+            List<String> columns = result.columns();
+            while (rows < config.sampleRows() && result.hasNext()) {
+                Map<String, Object> row = result.next();
+                rows++;
+                Object first = row.get(columns.get(0));
+                Object second = entityOnly ? null : row.get(columns.get(1));
+                if (entityOnly ? first instanceof Entity
+                        : (mapQuery ? first instanceof Entity : first instanceof Number) && second instanceof Number) {
+                    used++;
+                }
+            }
+            exhausted = !result.hasNext();
+        }
+        long nanos = System.nanoTime() - start;
+        if (exhausted || rows == 0) return new QuerySample(rows, used, rows, nanos);
+
+        long total = Math.max(rows, planned);
+        return new QuerySample(total, Math.round((double) total * used / rows), rows, (double) nanos / rows * total);
+    }
+
+    //plans the query without running it
+    private Plan plan(String query, String message) {
+        try (Result plan = execute("EXPLAIN " + query, message)) {
+            Object rows = plan.getExecutionPlanDescription().getArguments().get("EstimatedRows");
+            return new Plan(rows instanceof Number ? ((Number) rows).doubleValue() : 0, plan.columns().size(),
+                    plan.getQueryExecutionType().queryType() == QueryExecutionType.QueryType.READ_ONLY);
+        }
+    }
+
+    private Result execute(String query, String message) {
+        try {
+            return db.execute(query);
+        } catch (QueryExecutionException e) {
+            throw new RuntimeException(message);
+        }
+    }
+
+    //average time per prediction written by the recent runs that wrote any
+    private static double writeNanosPerRow() {
+        long written = 0;
+        long nanos = 0;
+        for (RegressionMetrics.Run run : RegressionMetrics.INSTANCE.recent()) {
+            if (run.written == 0) continue;
+            written += run.written;
+            nanos += run.phaseNanos[RegressionMetrics.Phase.WRITE.ordinal()];
+        }
+        return written == 0 ? DEFAULT_WRITE_NANOS : (double) nanos / written;
+    }
+
+    private static String optional(Map<String, Object> arguments, String key) {
+        return arguments.containsKey(key) ? RegressionJobs.string(arguments, key) : "";
+    }
+
+    /**
+     * The estimate of one call and how it compares to the budget of the
+     * config it was made with.
+     */
+    final class Estimate {
+        final String procedure;
+        final long rowsToScan;
+        final long rowsToWrite;
+        final long sampled;
+        long heapBytes;
+        double seconds;
+
+        private Estimate(String procedure, long rowsToScan, long rowsToWrite, long sampled) {
+            this.procedure = procedure;
+            this.rowsToScan = rowsToScan;
+            this.rowsToWrite = rowsToWrite;
+            this.sampled = sampled;
+        }
+
+        long heapBudget() {
+            return config.heapBudget();
+        }
+
+        //the ways the estimate exceeds the budget, empty if it is within
+        List<String> overBudget() {
+            List<String> reasons = new ArrayList<>();
+            if (heapBytes > config.heapBudget()) {
+                reasons.add(String.format("estimated peak heap of %d bytes exceeds the heapBudget of %d bytes",
+                        heapBytes, config.heapBudget()));
+            }
+            double timeBudget = config.timeBudget();
+            if (timeBudget >= 0 && seconds > timeBudget) {
+                reasons.add(String.format("estimated duration of %.1f seconds exceeds the timeBudget of %.1f seconds",
+                        seconds, timeBudget));
+            }
+            return reasons;
+        }
+
+        //refuses the call if it is over budget, suggesting a batchSize for the heap
+        void check() {
+            List<String> reasons = overBudget();
+            if (reasons.isEmpty()) return;
+            throw new RuntimeException(procedure + " refused, " + String.join(" and ", reasons) +
+                    (config.batchSize() == 0 ? ", a batchSize writes predictions in smaller transactions" : ""));
+        }
+    }
+
+    //what EXPLAIN tells of a query
+    private static final class Plan {
+        //rows the planner expects the query to return, from the statistics it keeps of the store
+        final double rows;
+        final int columns;
+        final boolean readOnly;
+
+        Plan(double rows, int columns, boolean readOnly) {
+            this.rows = rows;
+            this.columns = columns;
+            this.readOnly = readOnly;
+        }
+    }
+
+    //what the first rows of a query showed, scaled to all of its rows
+    private static final class QuerySample {
+        static final QuerySample NONE = new QuerySample(0, 0, 0, 0);
+
+        final long rows;
+        final long used;
+        final long sampled;
+        final double nanos;
+
+        QuerySample(long rows, long used, long sampled, double nanos) {
+            this.rows = rows;
+            this.used = used;
+            this.sampled = sampled;
+            this.nanos = nanos;
+        }
+    }
+
+    //sampler that reads the first rows of a scan
+    private static final class FirstRows implements EntityScan.Sampler {
+        private final int limit;
+        long known;
+        long unknown;
+        long rejected;
+
+        FirstRows(int limit) {
+            this.limit = limit;
+        }
+
+        long rows() {
+            return known + unknown + rejected;
+        }
+
+        @Override
+        public boolean sampled(Entity entity) {
+            return true;
+        }
+
+        @Override
+        public boolean done() {
+            return rows() >= limit;
+        }
+
+        @Override
+        public void known(Entity entity, double x, double y) {
+            known++;
+        }
+
+        @Override
+        public void unknown(Entity entity, double x) {
+            unknown++;
+        }
+
+        @Override
+        public void rejected(Entity entity) {
+            rejected++;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.QueryExecutionException;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+/**
+ * Runs simpleRegression and customRegression as background jobs, so a long
+ * fit holds neither a client connection nor a large transaction.
+ *
+ * A job runs on {@link Pools#JOBS}. It reads in a read transaction of its own,
+ * writes its predictions in batches that are committed separately, and stores
+ * the model node in a last small transaction. Jobs report how many rows they
+ * have scanned and written, and are cancelled between rows. Predictions
+ * committed before a cancellation stay committed, and no model node is
+ * stored.
+ *
+ * Jobs are kept per database until it shuts down, together with the last
+ * finished ones, and are numbered across all databases.
+ */
+final class RegressionJobs {
+
+    static final String SIMPLE = "simpleRegression";
+    static final String CUSTOM = "customRegression";
+
+    enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    //finished jobs kept for status calls, the oldest are dropped first
+    private static final int MAX_FINISHED = Integer.getInteger("example.regression.finishedJobs", 100);
+    //batch size of jobs whose config leaves it at 0, jobs never write in a single transaction
+    private static final int DEFAULT_BATCH_SIZE = 10_000;
+    //rows between two progress updates and cancellation checks
+    private static final int PROGRESS_INTERVAL = 1024;
+    private static final Label LINREG = Label.label("LinReg");
+
+    //one per running database
+    private static final PerDatabase<RegressionJobs> REGISTRIES = new PerDatabase<>(RegressionJobs::new,
+            RegressionJobs::cancelAll);
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final GraphDatabaseService db;
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();
+
+    private RegressionJobs(GraphDatabaseService db) {
+        this.db = db;
+    }
+
+    //returns the jobs of the database, they are cancelled when it shuts down
+    static RegressionJobs forDatabase(GraphDatabaseService db) {
+        return REGISTRIES.get(db);
+    }
+
+    private void cancelAll() {
+        for (Job job : jobs()) {
+            job.cancel();
+        }
+    }
+
+    /* Starts a job for the named procedure with the arguments it would be called with, by name. Missing arguments
+    fail here rather than in the job.
+     */
+    Job submit(String procedure, Map<String, Object> arguments, RegressionConfig config, Log log) {
+        //jobs only fit the plain single variable model, rather than silently ignoring options that would change it
+        if (config.live()) {
+            throw new RuntimeException("jobs can't keep a live model");
+        }
+        if (!config.expansion().isIdentity()) {
+            throw new RuntimeException("jobs can't use degree or transforms");
+        }
+        Task task;
+        if (procedure.equals(SIMPLE)) {
+            String label = string(arguments, "label");
+            String indVar = string(arguments, "indVar");
+            String depVar = string(arguments, "depVar");
+            String newVarName = string(arguments, "newVarName");
+            String dataSource = string(arguments, "dataSource");
+            EntityScan.checkDataSource(dataSource);
+            task = job -> simple(job, label, indVar, depVar, newVarName, dataSource, config, log);
+        } else if (procedure.equals(CUSTOM)) {
+            String modelQuery = string(arguments, "modelQuery");
+            String mapQuery = arguments.containsKey("mapQuery") ? string(arguments, "mapQuery") : "";
+            String newVarName = string(arguments, "newVarName");
+            Object modelID = arguments.get("modelID");
+            if (!(modelID instanceof Number)) {
+                throw new RuntimeException("argument 'modelID' must be a number");
+            }
+            task = job -> custom(job, modelQuery, mapQuery, newVarName, ((Number) modelID).longValue(), config, log);
+        } else {
+            throw new RuntimeException("Invalid procedure (acceptable values are '" + SIMPLE + "' or '" + CUSTOM + "')");
+        }
+
+        Job job = new Job(IDS.incrementAndGet(), procedure);
+        synchronized (this) {
+            jobs.put(job.id, job);
+            dropFinished();
+        }
+        job.future = Pools.JOBS.submit(() -> job.run(task));
+        return job;
+    }
+
+    //the job with the given id, or null if there is none
+    synchronized Job job(long id) {
+        return jobs.get(id);
+    }
+
+    synchronized List<Job> jobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    private void dropFinished() {
+        int finished = 0;
+        for (Job job : jobs.values()) {
+            if (job.isFinished()) finished++;
+        }
+        Iterator<Job> oldest = jobs.values().iterator();
+        while (finished > MAX_FINISHED && oldest.hasNext()) {
+            if (oldest.next().isFinished()) {
+                oldest.remove();
+                finished--;
+            }
+        }
+    }
+
+    private void simple(Job job, String label, String indVar, String depVar, String newVarName, String dataSource,
+                        RegressionConfig config, Log log) {
+        job.scanning(EntityScan.count(db, dataSource, label));
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start(metricsName(SIMPLE))) {
+            run.enter(RegressionMetrics.Phase.SCAN);
+            ScanAccumulator scanned;
+            try (Transaction tx = db.beginTx()) {
+                List<Counted> partials = EntityScan.scan(db, dataSource, label, indVar, depVar, config.concurrency(),
+                        () -> new Counted(job));
+                run.enter(RegressionMetrics.Phase.FIT);
+                scanned = partials.get(0).accumulator;
+                for (int i = 1; i < partials.size(); i++) {
+                    scanned.merge(partials.get(i).accumulator);
+                }
+                tx.success();
+            }
+            SimpleLinearModel R = scanned.model;
+            PointBuffer unknownValues = scanned.unknown;
+            job.scanned.set(R.getN() + unknownValues.size() + scanned.rejected);
+            run.scanned = job.scanned.get();
+            run.rejected = scanned.rejected;
+            if (R.getN() < 2) {
+                throw new RuntimeException("not enough known values to create a model");
+            }
+
+            run.enter(RegressionMetrics.Phase.WRITE);
+            PredictionWriter writer = new PredictionWriter(db, log, newVarName, R::predict, batchSize(config),
+                    config.concurrency())
+                    .skipUnchanged(config.epsilon(), config.relativeEpsilon());
+            job.writing(writer, unknownValues.size());
+            for (int i = 0; i < unknownValues.size(); i++) {
+                if (i % PROGRESS_INTERVAL == 0) job.checkCancelled();
+                writer.write(dataSource, unknownValues.id(i), unknownValues.x(i));
+            }
+            writer.finish();
+            run.written = writer.written();
+
+            job.checkCancelled();
+            try (Transaction tx = db.beginTx()) {
+                Node n = db.createNode(LINREG);
+                n.setProperty("label", label);
+                n.setProperty("indVar", indVar);
+                n.setProperty("depVar", depVar);
+                n.setProperty("rSquare", R.getRSquare());
+                n.setProperty("intercept", R.getIntercept());
+                n.setProperty("slope", R.getSlope());
+                n.setProperty("dataSource", dataSource);
+                n.setProperty(LiveModels.LIVE, false);
+                run.enter(RegressionMetrics.Phase.SERIALIZE);
+                byte[] serialized = ModelFormat.write(R);
+                run.bytesSerialized = serialized.length;
+                run.enter(RegressionMetrics.Phase.WRITE);
+                n.setProperty("serializedModel", serialized);
+                tx.success();
+                job.modelNodeId = n.getId();
+            }
+            run.succeeded();
+        }
+    }
+
+    private void custom(Job job, String modelQuery, String mapQuery, String newVarName, long modelID,
+                        RegressionConfig config, Log log) {
+        job.scanning(-1);
+        try (RegressionMetrics.Recorder run = RegressionMetrics.start(metricsName(CUSTOM))) {
+            run.enter(RegressionMetrics.Phase.SCAN);
+            SimpleLinearModel R = new SimpleLinearModel();
+            boolean distinct = config.distinct();
+            try (Transaction tx = db.beginTx(); Result rows = execute(modelQuery, "model query is invalid")) {
+                List<String> columns = rows.columns();
+                if (distinct && columns.size() < 3) {
+                    throw new RuntimeException("with distinct, queries must return an entity or entity id as third column");
+                }
+                DistinctIds seen = distinct ? new DistinctIds() : null;
+                long count = 0;
+                while (rows.hasNext()) {
+                    Map<String, Object> row = rows.next();
+                    Object x = row.get(columns.get(0));
+                    Object y = row.get(columns.get(1));
+                    if (!(x instanceof Number && y instanceof Number)) {
+                        run.rejected++;
+                    } else if (seen == null || seen.firstOccurrence(row.get(columns.get(2)))) {
+                        R.addData(((Number) x).doubleValue(), ((Number) y).doubleValue());
+                    }
+                    if (++count % PROGRESS_INTERVAL == 0) {
+                        job.scanned.set(count);
+                        job.checkCancelled();
+                    }
+                }
+                job.scanned.set(count);
+                run.scanned = count;
+                tx.success();
+            }
+            if (R.getN() < 2) {
+                throw new RuntimeException("not enough data to create a model");
+            }
+
+            if (!mapQuery.equals("")) {
+                run.enter(RegressionMetrics.Phase.WRITE);
+                PredictionWriter writer = new PredictionWriter(db, log, newVarName, R::predict, batchSize(config),
+                        config.concurrency())
+                        .skipUnchanged(config.epsilon(), config.relativeEpsilon())
+                        .readingX(config.indVar());
+                job.writing(writer, -1);
+                try (Transaction tx = db.beginTx(); Result rows = execute(mapQuery, "map query is invalid")) {
+                    String entity = rows.columns().get(0);
+                    String indVar = writer.readsX() ? null : rows.columns().get(1);
+                    long count = 0;
+                    while (rows.hasNext()) {
+                        if (count++ % PROGRESS_INTERVAL == 0) job.checkCancelled();
+                        Map<String, Object> row = rows.next();
+                        Object e = row.get(entity);
+                        Object x = indVar == null ? null : row.get(indVar);
+                        if (e instanceof Entity && indVar == null) {
+                            writer.write((Entity) e);
+                        } else if (e instanceof Entity && x instanceof Number) {
+                            writer.write((Entity) e, ((Number) x).doubleValue());
+                        } else {
+                            writer.skip();
+                        }
+                    }
+                    tx.success();
+                }
+                writer.finish();
+                run.written = writer.written();
+            }
+
+            job.checkCancelled();
+            try (Transaction tx = db.beginTx()) {
+                Node n = db.createNode(LINREG, Label.label("Custom"));
+                n.setProperty("intercept", R.getIntercept());
+                n.setProperty("slope", R.getSlope());
+                n.setProperty("ID", modelID);
+                n.setProperty("rSquare", R.getRSquare());
+                n.setProperty(ModelCache.VERSION, 0L);
+                run.enter(RegressionMetrics.Phase.SERIALIZE);
+                byte[] serialized = ModelFormat.write(R);
+                run.bytesSerialized = serialized.length;
+                run.enter(RegressionMetrics.Phase.WRITE);
+                n.setProperty("serializedModel", serialized);
+                tx.success();
+                job.modelNodeId = n.getId();
+                ModelCache.forDatabase(db).put(modelID, n.getId(), 0, R.copy());
+            }
+            run.succeeded();
+        }
+    }
+
+    //jobs are recorded apart from calls of the procedure itself, which run in the caller's transaction
+    private static String metricsName(String procedure) {
+        return "example.regression.submit." + procedure;
+    }
+
+    private Result execute(String query, String message) {
+        try {
+            return db.execute(query);
+        } catch (QueryExecutionException e) {
+            throw new RuntimeException(message);
+        }
+    }
+
+    private static int batchSize(RegressionConfig config) {
+        int batchSize = config.batchSize();
+        return batchSize == 0 ? DEFAULT_BATCH_SIZE : batchSize;
+    }
+
+    static String string(Map<String, Object> arguments, String key) {
+        Object value = arguments.get(key);
+        if (!(value instanceof String)) {
+            throw new RuntimeException("argument '" + key + "' must be a string");
+        }
+        return (String) value;
+    }
+
+    private interface Task {
+        void run(Job job);
+    }
+
+    /**
+     * One submitted job and its progress. Progress is written by the job's
+     * threads and read by status calls, without further synchronization.
+     */
+    static final class Job {
+        final long id;
+        final String procedure;
+        final long submitted = System.currentTimeMillis();
+
+        volatile State state = State.QUEUED;
+        volatile String phase = "queued";
+        volatile String error;
+        volatile long modelNodeId = -1;
+        final AtomicLong scanned = new AtomicLong();
+        //rows to scan or predictions to write in the current phase, -1 if unknown
+        volatile long toScan = -1;
+        volatile long toWrite = -1;
+        private volatile PredictionWriter writer;
+        private volatile long phaseStarted;
+        private volatile long started = -1;
+        private volatile long finished = -1;
+        private volatile boolean cancelled;
+        private volatile Future<?> future;
+
+        private Job(long id, String procedure) {
+            this.id = id;
+            this.procedure = procedure;
+        }
+
+        /* Asks the job to stop. A queued job is cancelled at once, a running one when it next checks, which is
+        within PROGRESS_INTERVAL rows.
+         */
+        void cancel() {
+            cancelled = true;
+            Future<?> queued = future;
+            if (queued != null && state == State.QUEUED && queued.cancel(false)) finish(State.CANCELLED, null);
+        }
+
+        long written() {
+            PredictionWriter current = writer;
+            return current == null ? 0 : current.written();
+        }
+
+        boolean isFinished() {
+            return finished >= 0;
+        }
+
+        //seconds the job has been running, or ran until it finished
+        double elapsedSeconds() {
+            if (started < 0) return 0;
+            long end = isFinished() ? finished : System.currentTimeMillis();
+            return (end - started) / 1000d;
+        }
+
+        //estimated seconds until the current phase ends, at the rate it has progressed so far, null if unknown
+        Double etaSeconds() {
+            if (state != State.RUNNING) return null;
+            long done = writer == null ? scanned.get() : written();
+            long total = writer == null ? toScan : toWrite;
+            if (total < 0 || done == 0) return null;
+            double seconds = (System.currentTimeMillis() - phaseStarted) / 1000d;
+            return Math.max(0, seconds * (total - done) / done);
+        }
+
+        private void run(Task task) {
+            if (cancelled) {
+                finish(State.CANCELLED, null);
+                return;
+            }
+            started = System.currentTimeMillis();
+            state = State.RUNNING;
+            try {
+                task.run(this);
+                finish(State.SUCCEEDED, null);
+            } catch (CancellationException e) {
+                finish(State.CANCELLED, null);
+            } catch (Throwable e) {
+                //an Error such as OutOfMemoryError fails the job too, and is still rethrown once the job is marked
+                finish(State.FAILED, e.getMessage() == null ? e.toString() : e.getMessage());
+                if (e instanceof Error) throw (Error) e;
+            }
+        }
+
+        private void scanning(long total) {
+            phase = "scanning";
+            toScan = total;
+            phaseStarted = System.currentTimeMillis();
+        }
+
+        private void writing(PredictionWriter writer, long total) {
+            phase = "writing";
+            toWrite = total;
+            phaseStarted = System.currentTimeMillis();
+            this.writer = writer;
+        }
+
+        private void checkCancelled() {
+            if (cancelled) throw new CancellationException("job " + id + " was cancelled");
+        }
+
+        private void finish(State state, String error) {
+            this.error = error;
+            this.phase = "done";
+            this.finished = System.currentTimeMillis();
+            this.state = state;
+        }
+    }
+
+    //scan visitor of a job, reporting its progress and stopping the scan once the job is cancelled
+    private static final class Counted implements EntityScan.Visitor {
+        final ScanAccumulator accumulator = new ScanAccumulator();
+        private final Job job;
+        private int count;
+
+        Counted(Job job) {
+            this.job = job;
+        }
+
+        @Override
+        public void known(Entity entity, double x, double y) {
+            accumulator.known(entity, x, y);
+            progress();
+        }
+
+        @Override
+        public void unknown(Entity entity, double x) {
+            accumulator.unknown(entity, x);
+            progress();
+        }
+
+        @Override
+        public void rejected(Entity entity) {
+            accumulator.rejected(entity);
+            progress();
+        }
+
+        private void progress() {
+            if (++count == PROGRESS_INTERVAL) {
+                job.scanned.addAndGet(count);
+                count = 0;
+                job.checkCancelled();
+            }
+        }
+    }
+}
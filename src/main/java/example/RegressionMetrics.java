@@ -0,0 +1,222 @@
+package example;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts and timings of the regression procedures, per phase of every call.
+ *
+ * A call of simpleRegression, multipleRegression, groupedRegression,
+ * crossValidateRegression, customRegression or updateRegression, and every
+ * background job, records how long it spent scanning entities or query rows,
+ * fitting, serializing the model and writing properties, and how many rows it
+ * scanned, rejected as non-numeric and wrote, and how many bytes it
+ * serialized. A simpleRegression with degree or transforms is recorded as
+ * simpleRegression, although it is fitted like a multipleRegression. The last runs are
+ * kept in a ring buffer for example.regression.metrics, and totals over all
+ * runs since startup are published over JMX as example.regression:type=Metrics.
+ *
+ * Points are added to a model as they are read, so that time counts as
+ * scanning. Fitting covers what happens to the model on its own: merging the
+ * partial models of parallel workers, or reading the stored model that an
+ * update starts from. Runs of every database in the JVM are recorded together.
+ */
+final class RegressionMetrics implements RegressionMetricsMXBean {
+
+    enum Phase {
+        SCAN, FIT, SERIALIZE, WRITE
+    }
+
+    //number of runs kept for example.regression.metrics
+    private static final int CAPACITY = Math.max(1, Integer.getInteger("example.regression.metricsRuns", 100));
+    private static final String OBJECT_NAME = "example.regression:type=Metrics";
+
+    static final RegressionMetrics INSTANCE = register(new RegressionMetrics(CAPACITY));
+
+    private final Run[] runs;
+    private int next;
+    private long count;
+
+    private long failures;
+    private long scanned;
+    private long rejected;
+    private long written;
+    private long bytesSerialized;
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    private RegressionMetrics(int capacity) {
+        this.runs = new Run[capacity];
+    }
+
+    //starts recording a call of the named procedure, the run is kept once it is closed
+    static Recorder start(String procedure) {
+        return new Recorder(procedure);
+    }
+
+    //the kept runs, newest first
+    synchronized List<Run> recent() {
+        int size = (int) Math.min(count, runs.length);
+        List<Run> recent = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++) {
+            recent.add(runs[Math.floorMod(next - i, runs.length)]);
+        }
+        return recent;
+    }
+
+    private synchronized void record(Run run) {
+        runs[next] = run;
+        next = (next + 1) % runs.length;
+        count++;
+        if (!run.succeeded) failures++;
+        scanned += run.scanned;
+        rejected += run.rejected;
+        written += run.written;
+        bytesSerialized += run.bytesSerialized;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] += run.phaseNanos[i];
+        }
+    }
+
+    @Override
+    public synchronized long getRuns() {
+        return count;
+    }
+
+    @Override
+    public synchronized long getFailedRuns() {
+        return failures;
+    }
+
+    @Override
+    public synchronized long getRowsScanned() {
+        return scanned;
+    }
+
+    @Override
+    public synchronized long getRowsRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized long getRowsWritten() {
+        return written;
+    }
+
+    @Override
+    public synchronized long getBytesSerialized() {
+        return bytesSerialized;
+    }
+
+    @Override
+    public synchronized double getScanMillis() {
+        return millis(phaseNanos[Phase.SCAN.ordinal()]);
+    }
+
+    @Override
+    public synchronized double getFitMillis() {
+        return millis(phaseNanos[Phase.FIT.ordinal()]);
+    }
+
+    @Override
+    public synchronized double getSerializeMillis() {
+        return millis(phaseNanos[Phase.SERIALIZE.ordinal()]);
+    }
+
+    @Override
+    public synchronized double getWriteMillis() {
+        return millis(phaseNanos[Phase.WRITE.ordinal()]);
+    }
+
+    static double millis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+
+    //a JVM without a platform MBean server, or a second copy of the plugin, still records runs
+    private static RegressionMetrics register(RegressionMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(metrics, name);
+        } catch (JMException | SecurityException e) {
+            //metrics stay available through the procedure
+        }
+        return metrics;
+    }
+
+    /**
+     * Records one call while it runs. Each call to enter ends the current
+     * phase and starts the next, and time outside of any phase is only part
+     * of the total. Not thread safe, counts from worker threads are added
+     * once the workers are done.
+     */
+    static final class Recorder implements AutoCloseable {
+        private final String procedure;
+        private final long started = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final long[] phaseNanos = new long[Phase.values().length];
+        private Phase phase;
+        private long phaseStart;
+        private boolean succeeded;
+
+        long scanned;
+        long rejected;
+        long written;
+        long bytesSerialized;
+
+        private Recorder(String procedure) {
+            this.procedure = procedure;
+        }
+
+        void enter(Phase next) {
+            long now = System.nanoTime();
+            if (phase != null) phaseNanos[phase.ordinal()] += now - phaseStart;
+            phase = next;
+            phaseStart = now;
+        }
+
+        //marks the call as completed, a run closed without it is recorded as failed
+        void succeeded() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            enter(null);
+            INSTANCE.record(new Run(this, System.nanoTime() - startNanos));
+        }
+    }
+
+    //a finished call
+    static final class Run {
+        final String procedure;
+        final long started;
+        final boolean succeeded;
+        final long totalNanos;
+        final long[] phaseNanos;
+        final long scanned;
+        final long rejected;
+        final long written;
+        final long bytesSerialized;
+
+        private Run(Recorder recorder, long totalNanos) {
+            this.procedure = recorder.procedure;
+            this.started = recorder.started;
+            this.succeeded = recorder.succeeded;
+            this.totalNanos = totalNanos;
+            this.phaseNanos = recorder.phaseNanos;
+            this.scanned = recorder.scanned;
+            this.rejected = recorder.rejected;
+            this.written = recorder.written;
+            this.bytesSerialized = recorder.bytesSerialized;
+        }
+
+        double millis(Phase phase) {
+            return RegressionMetrics.millis(phaseNanos[phase.ordinal()]);
+        }
+    }
+}
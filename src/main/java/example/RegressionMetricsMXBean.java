@@ -0,0 +1,28 @@
+package example;
+
+/**
+ * Totals over all regression runs since startup, published over JMX by
+ * {@link RegressionMetrics}. Times are in milliseconds.
+ */
+public interface RegressionMetricsMXBean {
+
+    long getRuns();
+
+    long getFailedRuns();
+
+    long getRowsScanned();
+
+    long getRowsRejected();
+
+    long getRowsWritten();
+
+    long getBytesSerialized();
+
+    double getScanMillis();
+
+    double getFitMillis();
+
+    double getSerializeMillis();
+
+    double getWriteMillis();
+}
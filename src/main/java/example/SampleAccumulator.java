@@ -0,0 +1,77 @@
+package example;
+
+import org.neo4j.graphdb.Entity;
+
+/**
+ * Sampled scan visitor that fits a model on a Bernoulli sample of the known
+ * points and stops once its estimates are precise enough.
+ *
+ * Whether an entity is sampled depends only on a hash of its id, so it is
+ * decided before any property is read and the same entities are picked every
+ * time. Every CHECK_INTERVAL sampled points the confidence intervals of the
+ * slope and intercept are computed, and the scan stops when both half-widths
+ * are within the tolerance.
+ */
+final class SampleAccumulator implements EntityScan.Sampler {
+
+    //sampled points between two convergence checks, so the t distribution isn't evaluated per point
+    static final int CHECK_INTERVAL = 100;
+
+    private final SimpleLinearModel model = new SimpleLinearModel();
+    private final double rate;
+    private final double tolerance;
+    private final double alpha;
+    private long scanned;
+    private boolean converged;
+
+    SampleAccumulator(double rate, double tolerance, double confidence) {
+        this.rate = rate;
+        this.tolerance = tolerance;
+        this.alpha = 1 - confidence;
+    }
+
+    @Override
+    public boolean sampled(Entity entity) {
+        scanned++;
+        return rate >= 1 || uniform(entity.getId()) < rate;
+    }
+
+    @Override
+    public void known(Entity entity, double x, double y) {
+        model.addData(x, y);
+        if (tolerance > 0 && model.getN() % CHECK_INTERVAL == 0) {
+            converged = model.getSlopeConfidenceInterval(alpha) <= tolerance
+                    && model.getInterceptConfidenceInterval(alpha) <= tolerance;
+        }
+    }
+
+    @Override
+    public void unknown(Entity entity, double x) {
+    }
+
+    @Override
+    public boolean done() {
+        return converged;
+    }
+
+    SimpleLinearModel model() {
+        return model;
+    }
+
+    long scanned() {
+        return scanned;
+    }
+
+    double alpha() {
+        return alpha;
+    }
+
+    //maps an id to a value in [0, 1), spreading consecutive ids evenly
+    static double uniform(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        h ^= h >>> 32;
+        return (h >>> 11) * 0x1.0p-53;
+    }
+}
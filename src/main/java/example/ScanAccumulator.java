@@ -0,0 +1,48 @@
+package example;
+
+import org.neo4j.graphdb.Entity;
+
+/**
+ * Scan visitor that feeds known points into a model and remembers the unknown
+ * points for prediction. Parallel scans use one accumulator per worker and
+ * merge them once the scan is done.
+ */
+final class ScanAccumulator implements EntityScan.Visitor {
+
+    final SimpleLinearModel model = new SimpleLinearModel();
+    final PointBuffer unknown = new PointBuffer();
+    private final boolean keepUnknown;
+    //entities read without a numeric x, or with a y that isn't numeric
+    long rejected;
+
+    ScanAccumulator() {
+        this(true);
+    }
+
+    //an accumulator that only fits the model, for callers that find the unknown points again themselves
+    ScanAccumulator(boolean keepUnknown) {
+        this.keepUnknown = keepUnknown;
+    }
+
+    @Override
+    public void known(Entity entity, double x, double y) {
+        model.addData(x, y);
+    }
+
+    @Override
+    public void unknown(Entity entity, double x) {
+        if (keepUnknown) unknown.add(entity.getId(), x);
+    }
+
+    @Override
+    public void rejected(Entity entity) {
+        rejected++;
+    }
+
+    //adds the points gathered by another accumulator to this one
+    void merge(ScanAccumulator other) {
+        model.append(other.model);
+        unknown.addAll(other.unknown);
+        rejected += other.rejected;
+    }
+}
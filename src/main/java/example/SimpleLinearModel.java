@@ -0,0 +1,328 @@
+package example;
+
+import org.apache.commons.math3.distribution.TDistribution;
+
+/**
+ * Ordinary least squares over one independent variable, kept as running sums.
+ *
+ * The updating formulas are the ones of
+ * {@link org.apache.commons.math3.stat.regression.SimpleRegression}, so a
+ * model fed the same points in the same order makes exactly the same
+ * predictions. Unlike SimpleRegression its whole state is visible to
+ * {@link ModelFormat}, which stores it without Java serialization.
+ */
+final class SimpleLinearModel {
+
+    private final boolean hasIntercept;
+    private long n;
+    private double sumX;
+    //sum of squared deviations of x, or of squared x without an intercept
+    private double sumXX;
+    private double sumY;
+    //sum of squared deviations of y, or of squared y without an intercept
+    private double sumYY;
+    //sum of cross products of the deviations, or of x * y without an intercept
+    private double sumXY;
+    private double xbar;
+    private double ybar;
+
+    SimpleLinearModel() {
+        this(true);
+    }
+
+    SimpleLinearModel(boolean hasIntercept) {
+        this.hasIntercept = hasIntercept;
+    }
+
+    //restores a model from its stored state
+    SimpleLinearModel(boolean hasIntercept, long n, double sumX, double sumXX, double sumY, double sumYY,
+                      double sumXY, double xbar, double ybar) {
+        this.hasIntercept = hasIntercept;
+        this.n = n;
+        this.sumX = sumX;
+        this.sumXX = sumXX;
+        this.sumY = sumY;
+        this.sumYY = sumYY;
+        this.sumXY = sumXY;
+        this.xbar = xbar;
+        this.ybar = ybar;
+    }
+
+    void addData(double x, double y) {
+        if (n == 0) {
+            xbar = x;
+            ybar = y;
+        } else if (hasIntercept) {
+            double fact1 = 1.0 + n;
+            double fact2 = n / (1.0 + n);
+            double dx = x - xbar;
+            double dy = y - ybar;
+            sumXX += dx * dx * fact2;
+            sumYY += dy * dy * fact2;
+            sumXY += dx * dy * fact2;
+            xbar += dx / fact1;
+            ybar += dy / fact1;
+        }
+        if (!hasIntercept) {
+            sumXX += x * x;
+            sumYY += y * y;
+            sumXY += x * y;
+        }
+        sumX += x;
+        sumY += y;
+        n++;
+    }
+
+    void removeData(double x, double y) {
+        if (n == 0) return;
+        //the updating formulas divide by n - 1, removing the last point simply empties the model
+        if (n == 1) {
+            clear();
+            return;
+        }
+        double fact1 = n - 1.0;
+        if (hasIntercept) {
+            double fact2 = n / (n - 1.0);
+            double dx = x - xbar;
+            double dy = y - ybar;
+            sumXX -= dx * dx * fact2;
+            sumYY -= dy * dy * fact2;
+            sumXY -= dx * dy * fact2;
+            xbar -= dx / fact1;
+            ybar -= dy / fact1;
+        } else {
+            sumXX -= x * x;
+            sumYY -= y * y;
+            sumXY -= x * y;
+            xbar -= x / fact1;
+            ybar -= y / fact1;
+        }
+        sumX -= x;
+        sumY -= y;
+        n--;
+    }
+
+    //adds all the data of another model
+    void append(SimpleLinearModel other) {
+        if (other.hasIntercept != hasIntercept) {
+            throw new IllegalArgumentException("cannot merge models with and without an intercept");
+        }
+        //the correction for the distance between the means is 0 * infinity for an empty model far from the origin
+        if (other.n == 0) return;
+        if (n == 0) {
+            xbar = other.xbar;
+            ybar = other.ybar;
+            sumXX = other.sumXX;
+            sumYY = other.sumYY;
+            sumXY = other.sumXY;
+        } else if (hasIntercept) {
+            double fact1 = other.n / (double) (other.n + n);
+            double fact2 = n * other.n / (double) (other.n + n);
+            double dx = other.xbar - xbar;
+            double dy = other.ybar - ybar;
+            sumXX += other.sumXX + dx * dx * fact2;
+            sumYY += other.sumYY + dy * dy * fact2;
+            sumXY += other.sumXY + dx * dy * fact2;
+            xbar += dx * fact1;
+            ybar += dy * fact1;
+        } else {
+            sumXX += other.sumXX;
+            sumYY += other.sumYY;
+            sumXY += other.sumXY;
+        }
+        sumX += other.sumX;
+        sumY += other.sumY;
+        n += other.n;
+    }
+
+    /* Removes all the data of another model whose points are part of this one, the inverse of append. Used to get
+    the model of everything except one part of the data without reading the rest again.
+     */
+    void subtract(SimpleLinearModel part) {
+        if (part.hasIntercept != hasIntercept) {
+            throw new IllegalArgumentException("cannot subtract models with and without an intercept");
+        }
+        if (part.n > n) {
+            throw new IllegalArgumentException("cannot subtract a model with more data than this one");
+        }
+        if (part.n == 0) return;
+        if (part.n == n) {
+            clear();
+            return;
+        }
+        long rest = n - part.n;
+        if (hasIntercept) {
+            //means of the remaining points, then undo the correction append made for the distance between the means
+            double restXbar = (n * xbar - part.n * part.xbar) / rest;
+            double restYbar = (n * ybar - part.n * part.ybar) / rest;
+            double fact2 = rest * (double) part.n / n;
+            double dx = part.xbar - restXbar;
+            double dy = part.ybar - restYbar;
+            sumXX -= part.sumXX + dx * dx * fact2;
+            sumYY -= part.sumYY + dy * dy * fact2;
+            sumXY -= part.sumXY + dx * dy * fact2;
+            xbar = restXbar;
+            ybar = restYbar;
+        } else {
+            sumXX -= part.sumXX;
+            sumYY -= part.sumYY;
+            sumXY -= part.sumXY;
+        }
+        sumX -= part.sumX;
+        sumY -= part.sumY;
+        n = rest;
+    }
+
+    //sum of squared errors of the line y = intercept + slope * x over the points of this model, without reading them
+    double sumSquaredErrors(double intercept, double slope) {
+        if (n == 0) return 0;
+        if (hasIntercept) {
+            //the sums are taken around the means, the line's error at the means adds n times its square
+            double atMeans = ybar - intercept - slope * xbar;
+            return Math.max(0d, sumYY - 2 * slope * sumXY + slope * slope * sumXX + n * atMeans * atMeans);
+        }
+        return Math.max(0d, sumYY - 2 * intercept * sumY - 2 * slope * sumXY + intercept * intercept * n
+                + 2 * intercept * slope * sumX + slope * slope * sumXX);
+    }
+
+    SimpleLinearModel copy() {
+        SimpleLinearModel copy = new SimpleLinearModel(hasIntercept);
+        copy.append(this);
+        return copy;
+    }
+
+    double predict(double x) {
+        double slope = getSlope();
+        if (hasIntercept) {
+            return getIntercept(slope) + slope * x;
+        }
+        return slope * x;
+    }
+
+    //predicts ys[i] for every xs[i], exactly as predict does for each of them
+    void predict(double[] xs, double[] ys) {
+        double slope = getSlope();
+        double intercept = getIntercept(slope);
+        for (int i = 0; i < xs.length; i++) {
+            ys[i] = hasIntercept ? intercept + slope * xs[i] : slope * xs[i];
+        }
+    }
+
+    double getSlope() {
+        if (n < 2) {
+            return Double.NaN;
+        }
+        //not enough variation in x
+        if (Math.abs(sumXX) < 10 * Double.MIN_VALUE) {
+            return Double.NaN;
+        }
+        return sumXY / sumXX;
+    }
+
+    double getIntercept() {
+        return hasIntercept ? getIntercept(getSlope()) : 0.0;
+    }
+
+    double getSumSquaredErrors() {
+        return Math.max(0d, sumYY - sumXY * sumXY / sumXX);
+    }
+
+    double getTotalSumSquares() {
+        if (n < 2) {
+            return Double.NaN;
+        }
+        return sumYY;
+    }
+
+    double getRSquare() {
+        double ssto = getTotalSumSquares();
+        return (ssto - getSumSquaredErrors()) / ssto;
+    }
+
+    double getMeanSquareError() {
+        if (n < 3) {
+            return Double.NaN;
+        }
+        return hasIntercept ? getSumSquaredErrors() / (n - 2) : getSumSquaredErrors() / (n - 1);
+    }
+
+    double getSlopeStdErr() {
+        return Math.sqrt(getMeanSquareError() / sumXX);
+    }
+
+    double getInterceptStdErr() {
+        if (!hasIntercept) {
+            return Double.NaN;
+        }
+        return Math.sqrt(getMeanSquareError() * ((1d / n) + (xbar * xbar) / sumXX));
+    }
+
+    //half-width of the slope's confidence interval at significance level alpha, as SimpleRegression computes it
+    double getSlopeConfidenceInterval(double alpha) {
+        return getSlopeStdErr() * criticalValue(alpha);
+    }
+
+    //half-width of the intercept's confidence interval at significance level alpha
+    double getInterceptConfidenceInterval(double alpha) {
+        return getInterceptStdErr() * criticalValue(alpha);
+    }
+
+    long getN() {
+        return n;
+    }
+
+    boolean hasIntercept() {
+        return hasIntercept;
+    }
+
+    double getSumX() {
+        return sumX;
+    }
+
+    double getSumXX() {
+        return sumXX;
+    }
+
+    double getSumY() {
+        return sumY;
+    }
+
+    double getSumYY() {
+        return sumYY;
+    }
+
+    double getSumXY() {
+        return sumXY;
+    }
+
+    double getXbar() {
+        return xbar;
+    }
+
+    double getYbar() {
+        return ybar;
+    }
+
+    private double criticalValue(double alpha) {
+        if (n < 3) {
+            return Double.NaN;
+        }
+        if (alpha >= 1 || alpha <= 0) {
+            throw new RuntimeException("significance level must be between 0 and 1");
+        }
+        return new TDistribution(n - 2).inverseCumulativeProbability(1d - alpha / 2d);
+    }
+
+    private double getIntercept(double slope) {
+        if (hasIntercept) {
+            return (sumY - slope * sumX) / n;
+        }
+        return 0.0;
+    }
+
+    private void clear() {
+        n = 0;
+        sumX = sumXX = sumY = sumYY = sumXY = 0;
+        xbar = ybar = 0;
+    }
+}
@@ -0,0 +1,245 @@
+package example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.ResourceIterator;
+
+/**
+ * Named, columnar copies of numeric properties, kept in memory so several
+ * models can be fitted on the same data with one scan of the store.
+ *
+ * A snapshot holds one column of entity ids and one column of doubles per
+ * property. A missing or non-numeric value is stored as NaN. The columns are
+ * primitive buffers, either on the heap or, with offHeap, in direct memory
+ * outside of it. Nothing is boxed or type checked once the snapshot is loaded.
+ *
+ * A snapshot is not kept up to date. It shows the data as it was when it was
+ * loaded, until it is loaded again or dropped.
+ *
+ * Snapshots are kept per database until it shuts down. Their total size is
+ * capped by example.regression.snapshotBytes, a quarter of the maximum heap
+ * by default. When loading a snapshot would go over the cap, the least
+ * recently used ones are evicted first.
+ */
+final class Snapshots {
+
+    private static final long CAPACITY = Long.getLong("example.regression.snapshotBytes",
+            Runtime.getRuntime().maxMemory() / 4);
+
+    //one per running database
+    private static final PerDatabase<Snapshots> REGISTRIES = new PerDatabase<>(db -> new Snapshots());
+
+    //in access order, so the least recently used snapshot comes first
+    private final Map<String, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private Snapshots() {
+    }
+
+    //returns the snapshots of the database, they are dropped when it shuts down
+    static Snapshots forDatabase(GraphDatabaseService db) {
+        return REGISTRIES.get(db);
+    }
+
+    /* Reads the properties of every node with the label, or relationship with the type, into a snapshot stored
+    under name, replacing any snapshot of that name. Returns the names of the snapshots evicted to make room.
+     */
+    List<String> load(GraphDatabaseService db, String name, String dataSource, String label, List<String> properties,
+                      boolean offHeap) {
+        if (properties.isEmpty()) {
+            throw new RuntimeException("a snapshot needs at least one property");
+        }
+        //the count store gives the size up front, so a snapshot that can never fit fails before it is read
+        long expected = EntityScan.count(db, dataSource, label);
+        long expectedBytes = Snapshot.rowBytes(properties.size()) * expected;
+        if (expectedBytes > CAPACITY) {
+            throw new RuntimeException("a snapshot of " + expected + " rows needs about " + expectedBytes +
+                    " bytes, more than the " + CAPACITY + " bytes of example.regression.snapshotBytes");
+        }
+        Snapshot snapshot = Snapshot.read(db, name, dataSource, label, properties.toArray(new String[0]),
+                (int) Math.min(expected, Integer.MAX_VALUE - 8), offHeap);
+        if (snapshot.bytes() > CAPACITY) {
+            throw new RuntimeException("snapshot " + name + " needs " + snapshot.bytes() + " bytes, more than the " +
+                    CAPACITY + " bytes of example.regression.snapshotBytes");
+        }
+        return put(snapshot);
+    }
+
+    private synchronized List<String> put(Snapshot snapshot) {
+        Snapshot replaced = snapshots.remove(snapshot.name);
+        if (replaced != null) bytes -= replaced.bytes();
+        List<String> evicted = new ArrayList<>();
+        Iterator<Snapshot> oldest = snapshots.values().iterator();
+        while (bytes + snapshot.bytes() > CAPACITY && oldest.hasNext()) {
+            Snapshot next = oldest.next();
+            oldest.remove();
+            bytes -= next.bytes();
+            evicted.add(next.name);
+        }
+        snapshots.put(snapshot.name, snapshot);
+        bytes += snapshot.bytes();
+        return evicted;
+    }
+
+    //the snapshot stored under name, failing if there is none
+    synchronized Snapshot get(String name) {
+        Snapshot snapshot = snapshots.get(name);
+        if (snapshot == null) {
+            throw new RuntimeException("no snapshot named " + name);
+        }
+        return snapshot;
+    }
+
+    //removes the snapshot, its memory is freed once no running call uses it any more
+    synchronized Snapshot drop(String name) {
+        Snapshot snapshot = get(name);
+        snapshots.remove(name);
+        bytes -= snapshot.bytes();
+        return snapshot;
+    }
+
+    synchronized List<Snapshot> list() {
+        return new ArrayList<>(snapshots.values());
+    }
+
+    /**
+     * The columns of one snapshot. Immutable once read, so any number of
+     * calls can read it at the same time.
+     */
+    static final class Snapshot {
+        final String name;
+        final String dataSource;
+        final String label;
+        final String[] properties;
+        final boolean offHeap;
+        final long loaded = System.currentTimeMillis();
+        final double loadMillis;
+        final int size;
+        private final LongBuffer ids;
+        private final DoubleBuffer[] columns;
+
+        private Snapshot(String name, String dataSource, String label, String[] properties, boolean offHeap,
+                         double loadMillis, int size, LongBuffer ids, DoubleBuffer[] columns) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.label = label;
+            this.properties = properties;
+            this.offHeap = offHeap;
+            this.loadMillis = loadMillis;
+            this.size = size;
+            this.ids = ids;
+            this.columns = columns;
+        }
+
+        /* One pass over the label or type, each value read once and stored unboxed. The columns are allocated up
+        front, on the heap or in direct memory, for the number of rows the count store gave, and values are written
+        straight into them. They only grow if more rows turn up than were counted.
+         */
+        private static Snapshot read(GraphDatabaseService db, String name, String dataSource, String label,
+                                     String[] properties, int expected, boolean offHeap) {
+            long start = System.nanoTime();
+            //a direct buffer is indexed by byte, so it holds fewer values than an array
+            int maxRows = offHeap ? Integer.MAX_VALUE / 8 : Integer.MAX_VALUE - 8;
+            if (expected > maxRows) {
+                throw new RuntimeException("snapshot " + name + " has more rows than a column can hold off the heap");
+            }
+            int capacity = Math.max(16, expected);
+            LongBuffer ids = longs(capacity, offHeap);
+            DoubleBuffer[] columns = new DoubleBuffer[properties.length];
+            for (int i = 0; i < columns.length; i++) columns[i] = doubles(capacity, offHeap);
+            int size = 0;
+            try (ResourceIterator<Entity> entities = EntityScan.entities(db, dataSource, label, existing(db, properties))) {
+                while (entities.hasNext()) {
+                    Entity entity = entities.next();
+                    if (size == ids.capacity()) {
+                        if (size == maxRows) {
+                            throw new RuntimeException("snapshot " + name + " has more rows than a column can hold" +
+                                    (offHeap ? " off the heap" : ""));
+                        }
+                        capacity = (int) Math.min((long) size * 2, maxRows);
+                        ids = longs(capacity, offHeap).put(ids);
+                        for (int i = 0; i < columns.length; i++) columns[i] = doubles(capacity, offHeap).put(columns[i]);
+                    }
+                    Map<String, Object> row = entity.getProperties(properties);
+                    ids.put(size, entity.getId());
+                    for (int i = 0; i < properties.length; i++) {
+                        Object value = row.get(properties[i]);
+                        columns[i].put(size, value instanceof Number ? ((Number) value).doubleValue() : Double.NaN);
+                    }
+                    size++;
+                }
+            }
+
+            //the columns only show the rows read, a count that was too high leaves the rest unused
+            ids.clear().limit(size);
+            ids = ids.slice();
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].clear().limit(size);
+                columns[i] = columns[i].slice();
+            }
+            return new Snapshot(name, dataSource, label, properties, offHeap,
+                    RegressionMetrics.millis(System.nanoTime() - start), size, ids, columns);
+        }
+
+        //index of the column of property, failing if the snapshot doesn't have it
+        int column(String property) {
+            for (int i = 0; i < properties.length; i++) {
+                if (properties[i].equals(property)) return i;
+            }
+            throw new RuntimeException("snapshot " + name + " has no property " + property);
+        }
+
+        long id(int row) {
+            return ids.get(row);
+        }
+
+        //the value of the column in the row, NaN if the entity had no numeric value
+        double value(int column, int row) {
+            return columns[column].get(row);
+        }
+
+        //memory held by the columns
+        long bytes() {
+            return rowBytes(properties.length) * size;
+        }
+
+        static long rowBytes(int properties) {
+            return 8L * (properties + 1);
+        }
+
+        /* The scan in EntityScan walks the entities with a given property key, and finds nothing if that key was
+        never created. Any key of the snapshot that exists will do.
+         */
+        private static String existing(GraphDatabaseService db, String[] properties) {
+            for (String key : db.getAllPropertyKeys()) {
+                for (String property : properties) {
+                    if (key.equals(property)) return property;
+                }
+            }
+            return properties[0];
+        }
+
+        private static LongBuffer longs(int capacity, boolean offHeap) {
+            return offHeap ? direct(capacity).asLongBuffer() : LongBuffer.allocate(capacity);
+        }
+
+        private static DoubleBuffer doubles(int capacity, boolean offHeap) {
+            return offHeap ? direct(capacity).asDoubleBuffer() : DoubleBuffer.allocate(capacity);
+        }
+
+        //room for capacity values of 8 bytes outside the heap
+        private static ByteBuffer direct(int capacity) {
+            return ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+        }
+    }
+}
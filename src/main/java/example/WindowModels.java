@@ -0,0 +1,428 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Sliding-window regressions over nodes with a timestamp, kept in memory.
+ *
+ * A window holds the points whose timestamp lies within the window length of
+ * the newest timestamp seen, in a ring buffer of primitive arrays, together
+ * with a model of exactly those points. A new point is added to the model and
+ * every point that falls out of the window is removed from it, so an update
+ * costs O(1) amortized and the current slope and intercept are always at hand.
+ *
+ * Windows are defined by LinReg:Window nodes and loaded with two scans of their
+ * label, once the definition has committed or the first time they are used.
+ * The first scan finds the newest timestamp, the second reads the points
+ * within the window of it. From then on a transaction event handler
+ * feeds them the nodes that are created with, or given, their label once the
+ * transaction has committed. Points are expired in the order they arrive, so a
+ * point that arrives late stays until the points ahead of it have expired.
+ *
+ * A node of the label that is deleted, loses the label, or has its time, x or
+ * y changed has its point taken out of the window, and a changed node arrives
+ * again with its new point. Finding the point of such a node walks the buffer
+ * from the newest point back, so these changes cost O(points in the window)
+ * rather than O(1). The window keeps ending at the newest timestamp seen,
+ * even if the node that had it is gone.
+ */
+final class WindowModels {
+
+    static final Label WINDOW = Label.label("Window");
+    private static final Label LINREG = Label.label("LinReg");
+    //upper bound on the points kept per window, the oldest points are dropped beyond it
+    private static final int MAX_POINTS = Integer.getInteger("example.regression.maxWindowPoints", 1_000_000);
+
+    //one per running database
+    private static final PerDatabase<WindowModels> REGISTRIES = new PerDatabase<>(db -> {
+        WindowModels registry = new WindowModels(db);
+        db.registerTransactionEventHandler(registry.new Feed());
+        return registry;
+    });
+
+    private final GraphDatabaseService db;
+    private final ConcurrentMap<Long, Window> windows = new ConcurrentHashMap<>();
+
+    private WindowModels(GraphDatabaseService db) {
+        this.db = db;
+    }
+
+    //returns the windows of the database, registering the handler that feeds them on first use
+    static WindowModels forDatabase(GraphDatabaseService db) {
+        return REGISTRIES.get(db);
+    }
+
+    /* Returns the window defined by the LinReg:Window node with ID modelID, loading it if it isn't in memory yet or
+    was loaded from a different node. Returns null if there is no such node.
+     */
+    Window window(long modelID) {
+        Node definition = db.findNode(WINDOW, "ID", modelID);
+        if (definition == null || !definition.hasLabel(LINREG)) return null;
+
+        Window window = windows.get(modelID);
+        if (window != null && window.nodeId == definition.getId()) return window;
+
+        window = new Window(definition);
+        windows.put(modelID, window);
+        window.load(db);
+        return window;
+    }
+
+    /* Loads the window of a definition node the calling transaction has just created, without keeping it. Until the
+    transaction commits no other transaction can see the node, so the window is only kept once it has committed.
+     */
+    Window define(Node definition) {
+        Window window = new Window(definition);
+        window.load(db);
+        return window;
+    }
+
+    //loads and keeps the window of a newly committed definition node, in a transaction of its own
+    private void register(long modelID) {
+        try (Transaction tx = db.beginTx()) {
+            window(modelID);
+            tx.success();
+        }
+    }
+
+    //marks the slot of a point that was taken out of the window before it expired
+    private static final long REMOVED = -1;
+
+    //a point read from a node, in the order it is buffered
+    private static final class Point {
+        final long id;
+        final double time;
+        final double x;
+        final double y;
+
+        Point(long id, double time, double x, double y) {
+            this.id = id;
+            this.time = time;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /* What a committed transaction did to the point of one node: point is the point it has now, null if it no longer
+    has one. With replaces, the node may already have a point in the window, which is taken out first.
+     */
+    private static final class Change {
+        final long id;
+        final Point point;
+        final boolean replaces;
+
+        Change(long id, Point point, boolean replaces) {
+            this.id = id;
+            this.point = point;
+            this.replaces = replaces;
+        }
+    }
+
+    /**
+     * One window: its definition, a ring buffer of the points inside it and
+     * the model of those points. All access is synchronized on the window.
+     */
+    static final class Window {
+        final long nodeId;
+        final String label;
+        final String timeProperty;
+        final String indVar;
+        final String depVar;
+        final double length;
+
+        //node ids of the points, REMOVED for points taken out before they expired
+        private long[] ids = new long[64];
+        private double[] times = new double[64];
+        private double[] xs = new double[64];
+        private double[] ys = new double[64];
+        private int head;
+        private int size;
+        private double newest = Double.NEGATIVE_INFINITY;
+        private final SimpleLinearModel model = new SimpleLinearModel();
+
+        //while the window is loaded, changes committed meanwhile wait here
+        private List<Change> pending;
+
+        private Window(Node definition) {
+            Map<String, Object> properties = definition.getProperties("label", "timeProperty", "indVar", "depVar",
+                    "window");
+            this.nodeId = definition.getId();
+            this.label = (String) properties.get("label");
+            this.timeProperty = (String) properties.get("timeProperty");
+            this.indVar = (String) properties.get("indVar");
+            this.depVar = (String) properties.get("depVar");
+            this.length = ((Number) properties.get("window")).doubleValue();
+        }
+
+        synchronized long getN() {
+            return model.getN();
+        }
+
+        synchronized double getSlope() {
+            return model.getSlope();
+        }
+
+        synchronized double getIntercept() {
+            return model.getIntercept();
+        }
+
+        synchronized double getRSquare() {
+            return model.getRSquare();
+        }
+
+        //timestamps of the oldest and newest point in the window, null if it is empty
+        synchronized Double oldest() {
+            return size == 0 ? null : times[head];
+        }
+
+        synchronized Double newest() {
+            return size == 0 ? null : newest;
+        }
+
+        /* Reads the points of the window in timestamp order. A first scan of the label only reads the timestamps to
+        find the latest one, so the second one keeps just the points within the window of it rather than every point
+        of the label.
+         */
+        private void load(GraphDatabaseService db) {
+            synchronized (this) {
+                pending = new ArrayList<>();
+            }
+            double latest = Double.NEGATIVE_INFINITY;
+            try (ResourceIterator<Node> nodes = db.findNodes(Label.label(label))) {
+                while (nodes.hasNext()) {
+                    Object time = nodes.next().getProperty(timeProperty, null);
+                    if (time instanceof Number) latest = Math.max(latest, ((Number) time).doubleValue());
+                }
+            }
+            double cutoff = latest - length;
+            List<Point> points = new ArrayList<>();
+            try (ResourceIterator<Node> nodes = db.findNodes(Label.label(label))) {
+                while (nodes.hasNext()) {
+                    Point point = point(nodes.next());
+                    if (point != null && point.time >= cutoff) points.add(point);
+                }
+            }
+            points.sort((a, b) -> Double.compare(a.time, b.time));
+
+            synchronized (this) {
+                Set<Long> loaded = new HashSet<>();
+                for (Point point : points) {
+                    loaded.add(point.id);
+                    add(point);
+                }
+                //changes committed during the scan, which it may or may not have seen
+                for (Change change : pending) {
+                    if (change.replaces || loaded.contains(change.id)) remove(change.id);
+                    if (change.point != null) add(change.point);
+                }
+                pending = null;
+            }
+        }
+
+        private synchronized void offer(Change change) {
+            if (pending != null) {
+                pending.add(change);
+                return;
+            }
+            if (change.replaces) remove(change.id);
+            if (change.point != null) add(change.point);
+        }
+
+        //adds a point and expires every point that is no longer within the window of the newest timestamp
+        private void add(Point point) {
+            newest = Math.max(newest, point.time);
+            double cutoff = newest - length;
+            if (point.time < cutoff) return;
+            while (size > 0 && times[head] < cutoff) {
+                removeOldest();
+            }
+            if (size == MAX_POINTS) removeOldest();
+            if (size == times.length) grow();
+
+            int tail = (head + size) % times.length;
+            ids[tail] = point.id;
+            times[tail] = point.time;
+            xs[tail] = point.x;
+            ys[tail] = point.y;
+            size++;
+            model.addData(point.x, point.y);
+        }
+
+        //takes the point of a node out of the window before it expires, if the node has one in it
+        private void remove(long id) {
+            for (int i = size - 1; i >= 0; i--) {
+                int slot = (head + i) % times.length;
+                if (ids[slot] != id) continue;
+                if (slot == head) {
+                    removeOldest();
+                } else {
+                    model.removeData(xs[slot], ys[slot]);
+                    ids[slot] = REMOVED;
+                }
+                return;
+            }
+        }
+
+        //expires the oldest point, and the points after it that were already taken out, so the oldest is a live one
+        private void removeOldest() {
+            if (ids[head] != REMOVED) model.removeData(xs[head], ys[head]);
+            do {
+                head = (head + 1) % times.length;
+                size--;
+            } while (size > 0 && ids[head] == REMOVED);
+        }
+
+        //doubles the buffer, moving the points to the front in order
+        private void grow() {
+            int capacity = (int) Math.min((long) times.length * 2, MAX_POINTS);
+            ids = unwrap(ids, capacity);
+            times = unwrap(times, capacity);
+            xs = unwrap(xs, capacity);
+            ys = unwrap(ys, capacity);
+            head = 0;
+        }
+
+        private double[] unwrap(double[] values, int capacity) {
+            double[] copy = new double[capacity];
+            int first = Math.min(size, values.length - head);
+            System.arraycopy(values, head, copy, 0, first);
+            System.arraycopy(values, 0, copy, first, size - first);
+            return copy;
+        }
+
+        private long[] unwrap(long[] values, int capacity) {
+            long[] copy = new long[capacity];
+            int first = Math.min(size, values.length - head);
+            System.arraycopy(values, head, copy, 0, first);
+            System.arraycopy(values, 0, copy, first, size - first);
+            return copy;
+        }
+
+        //whether the window's points are read from the property
+        private boolean reads(String key) {
+            return key.equals(timeProperty) || key.equals(indVar) || key.equals(depVar);
+        }
+
+        private Point point(Node node) {
+            Map<String, Object> properties = node.getProperties(timeProperty, indVar, depVar);
+            Object time = properties.get(timeProperty);
+            Object x = properties.get(indVar);
+            Object y = properties.get(depVar);
+            if (!(time instanceof Number && x instanceof Number && y instanceof Number)) return null;
+            return new Point(node.getId(), ((Number) time).doubleValue(), ((Number) x).doubleValue(),
+                    ((Number) y).doubleValue());
+        }
+    }
+
+    /* Collects the points that enter, leave or change in a loaded window with a transaction, and hands them to the
+    window once the transaction has committed. Windows are forgotten when a definition node is deleted and loaded
+    again on use.
+     */
+    private final class Feed extends TransactionEventHandler.Adapter<Arrivals> {
+
+        @Override
+        public Arrivals beforeCommit(TransactionData data) {
+            Arrivals arrivals = new Arrivals();
+            for (LabelEntry entry : data.assignedLabels()) {
+                Node node = entry.node();
+                if (entry.label().name().equals(WINDOW.name()) && !data.isDeleted(node) && node.hasLabel(LINREG)) {
+                    Object id = node.getProperty("ID", null);
+                    if (id instanceof Number) arrivals.defined.add(((Number) id).longValue());
+                }
+            }
+            if (windows.isEmpty()) return arrivals.defined.isEmpty() ? null : arrivals;
+
+            Set<Long> created = new HashSet<>();
+            for (Node node : data.createdNodes()) {
+                created.add(node.getId());
+            }
+            for (Window window : windows.values()) {
+                //a window defined in this transaction has already read its points
+                if (created.contains(window.nodeId)) continue;
+                Label label = Label.label(window.label);
+                for (Node node : data.createdNodes()) {
+                    if (node.hasLabel(label)) arrivals.add(window, new Change(node.getId(), window.point(node), false));
+                }
+                //existing nodes that gained or lost the label, a deleted node loses all its labels
+                Map<Long, Node> changed = new LinkedHashMap<>();
+                Set<Long> left = new HashSet<>();
+                for (LabelEntry entry : data.assignedLabels()) {
+                    if (entry.label().name().equals(window.label)) changed.put(entry.node().getId(), entry.node());
+                }
+                for (LabelEntry entry : data.removedLabels()) {
+                    if (!entry.label().name().equals(window.label)) continue;
+                    changed.put(entry.node().getId(), entry.node());
+                    left.add(entry.node().getId());
+                }
+                //and nodes of the label whose time, x or y changed
+                for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                    if (window.reads(entry.key())) changed.put(entry.entity().getId(), entry.entity());
+                }
+                for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                    if (window.reads(entry.key())) changed.put(entry.entity().getId(), entry.entity());
+                }
+                for (Node node : changed.values()) {
+                    if (created.contains(node.getId())) continue;
+                    if (!data.isDeleted(node) && node.hasLabel(label)) {
+                        arrivals.add(window, new Change(node.getId(), window.point(node), true));
+                    } else if (left.contains(node.getId())) {
+                        arrivals.add(window, new Change(node.getId(), null, true));
+                    }
+                }
+            }
+            for (LabelEntry entry : data.removedLabels()) {
+                if (entry.label().name().equals(WINDOW.name())) arrivals.forget = true;
+            }
+            return arrivals;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Arrivals arrivals) {
+            if (arrivals == null) return;
+            if (arrivals.forget) {
+                windows.clear();
+            } else {
+                for (int i = 0; i < arrivals.changes.size(); i++) {
+                    arrivals.windows.get(i).offer(arrivals.changes.get(i));
+                }
+            }
+            //loading a window takes a transaction of its own and two scans, neither of which should hold up the commit
+            for (long modelID : arrivals.defined) {
+                Pools.DEFAULT.execute(() -> register(modelID));
+            }
+        }
+    }
+
+    //the points a transaction adds to, takes out of or changes in each window
+    private static final class Arrivals {
+        final List<Window> windows = new ArrayList<>();
+        final List<Change> changes = new ArrayList<>();
+        //model IDs of the windows defined by the transaction
+        final List<Long> defined = new ArrayList<>();
+        boolean forget;
+
+        void add(Window window, Change change) {
+            //a new node without a point leaves the window as it is
+            if (change.point == null && !change.replaces) return;
+            windows.add(window);
+            changes.add(change);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package example;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import org.junit.Rule;
 import org.junit.Test;
 import org.neo4j.cypher.internal.frontend.v2_3.ast.functions.Has;
@@ -13,6 +15,12 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 
 import java.util.Optional;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
 
 public class LinearRegressionTest {
 
@@ -76,18 +84,472 @@ public class LinearRegressionTest {
             assertEquals(model.get("slope").asDouble(), R.getSlope(), 0.00000000000001);
 
 
-            try (ByteArrayInputStream serializedModel = new ByteArrayInputStream(model.get("serializedModel").asByteArray());
-                ObjectInput in = new ObjectInputStream(serializedModel)){
+            SimpleLinearModel o = ModelFormat.readSimple(model.get("serializedModel").asByteArray());
+            assertEquals(model.get("intercept").asDouble(), o.getIntercept(), 0.00000000000001);
+            assertEquals(model.get("slope").asDouble(), o.getSlope(), 0.00000000000001);
 
-                SimpleRegression o = (SimpleRegression) in.readObject();
-                assertEquals(model.get("intercept").asDouble(), o.getIntercept(), 0.00000000000001);
-                assertEquals(model.get("slope").asDouble(), o.getSlope(), 0.00000000000001);
 
-            } catch (IOException e) {
-                fail("error in deserialization");
+        }
+    }
+
+    @Test
+    public void shouldOnlyUseNodesWithLabel() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("CREATE (:node {time:1.0, progress:1.345}), (:node {time:2.0, progress:2.596}), " +
+                    "(:node {time:3.0, progress:3.259}), (:node {time:4.0}), (:other {time:1.5, progress:40.0}), " +
+                    "(:other {time:6.0}), (:node {time:'late', progress:2.0})");
+            session.run("CALL example.simpleRegression('node', 'time', 'progress', 'predictedProgress', 'node')");
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+
+            Record predicted = session.run("MATCH (n:node) WHERE exists(n.predictedProgress) " +
+                    "RETURN n.time as time, n.predictedProgress as predictedProgress").single();
+            assertEquals(4.0, predicted.get("time").asDouble(), 0.0);
+            assertThat(predicted.get("predictedProgress").asDouble(), equalTo(R.predict(4.0)));
+
+            long unlabeled = session.run("MATCH (n:other) WHERE exists(n.predictedProgress) RETURN count(n) as count")
+                    .single().get("count").asLong();
+            assertEquals(0, unlabeled);
+        }
+    }
+
+    @Test
+    public void shouldWritePredictionsInBatches() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("CREATE (:node {time:1.0, progress:1.345}), (:node {time:2.0, progress:2.596}), " +
+                    "(:node {time:3.0, progress:3.259}), (:node {time:4.0}), (:node {time:5.0}), (:node {time:6.0})");
+            Record counts = session.run("CALL example.simpleRegression('node', 'time', 'progress', 'predictedProgress', " +
+                    "'node', {batchSize: 2})").single();
+
+            assertEquals(3, counts.get("written").asLong());
+            assertEquals(0, counts.get("failed").asLong());
+            assertEquals(0, counts.get("skipped").asLong());
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+
+            StatementResult result = session.run("MATCH (n:node) WHERE exists(n.predictedProgress) " +
+                    "RETURN n.time as time, n.predictedProgress as predictedProgress");
+            int predicted = 0;
+            while (result.hasNext()) {
+                Record actual = result.next();
+                assertThat(actual.get("predictedProgress").asDouble(), equalTo(R.predict(actual.get("time").asDouble())));
+                predicted++;
+            }
+            assertEquals(3, predicted);
+
+            //batches would wait for the locks of a transaction that has already changed data, so it is refused
+            try {
+                session.run("CREATE (:node {time:7.0}) WITH count(*) AS created " +
+                        "CALL example.simpleRegression('node', 'time', 'progress', 'predictedProgress', 'node', " +
+                        "{batchSize: 2}) YIELD written RETURN written").consume();
+                fail("batches should have been refused");
+            } catch (Exception e) {
+                assertTrue(e.getMessage().contains("already changed data"));
             }
+            assertEquals(0, session.run("MATCH (n:node {time:7.0}) RETURN n").list().size());
+        }
+    }
 
+    @Test
+    public void shouldFitModelWithConcurrentScan() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("UNWIND range(1, 25000) AS i CREATE (:node {time:toFloat(i), progress:2.5 * i + (i % 7) - 3.0})");
+            session.run("UNWIND range(25001, 25010) AS i CREATE (:node {time:toFloat(i)})");
+            Record counts = session.run("CALL example.simpleRegression('node', 'time', 'progress', 'predictedProgress', " +
+                    "'node', {concurrency: 4})").single();
+            assertEquals(10, counts.get("written").asLong());
 
+            SimpleRegression R = new SimpleRegression();
+            for (int i = 1; i <= 25000; i++) {
+                R.addData(i, 2.5 * i + (i % 7) - 3.0);
+            }
+
+            Record model = session.run("MATCH (n:LinReg {label:'node', indVar:'time', depVar:'progress'}) " +
+                    "RETURN n.intercept as intercept, n.slope as slope").single();
+            assertEquals(R.getIntercept(), model.get("intercept").asDouble(), 0.000001);
+            assertEquals(R.getSlope(), model.get("slope").asDouble(), 0.000001);
+
+            double predicted = session.run("MATCH (n:node {time:25005.0}) RETURN n.predictedProgress as predicted")
+                    .single().get("predicted").asDouble();
+            assertEquals(R.predict(25005.0), predicted, 0.0001);
+        }
+    }
+
+    @Test
+    public void shouldMaintainLiveModel() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("CREATE (:node {time:1.0, progress:1.345}), (:node {time:2.0, progress:2.596}), " +
+                    "(:node {time:3.0, progress:3.259}), (:node {time:4.0}), (:node {time:5.0})");
+            session.run("CALL example.simpleRegression('node', 'time', 'progress', 'predictedProgress', 'node', {live: true})");
+
+            //every kind of change to the data the model was fitted on
+            session.run("CREATE (:node {time:6.0, progress:5.870})");
+            session.run("MATCH (n:node {time:1.0}) DELETE n");
+            session.run("MATCH (n:node {time:2.0}) SET n.progress = 2.5");
+            session.run("MATCH (n:node {time:4.0}) SET n.progress = 4.1");
+            session.run("MATCH (n:node {time:3.0}) REMOVE n:node");
+            session.run("CREATE (:other {time:7.0, progress:1.0})");
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(2.0, 2.5);
+            R.addData(4.0, 4.1);
+            R.addData(6.0, 5.870);
+
+            Record model = session.run("MATCH (n:LinReg {label:'node', indVar:'time', depVar:'progress'}) " +
+                    "RETURN n.intercept as intercept, n.slope as slope, n.serializedModel as serializedModel").single();
+            assertEquals(R.getIntercept(), model.get("intercept").asDouble(), 0.000000001);
+            assertEquals(R.getSlope(), model.get("slope").asDouble(), 0.000000001);
+            assertEquals(3, ModelFormat.readSimple(model.get("serializedModel").asByteArray()).getN());
+        }
+    }
+
+    @Test
+    public void shouldMaintainLiveModelsOfOneLabelTogether() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("CREATE (:node {time:1.0, progress:1.345, cost:2.0}), (:node {time:2.0, progress:2.596, cost:4.5}), " +
+                    "(:node {time:3.0, progress:3.259, cost:5.9})");
+            session.run("CALL example.simpleRegression('node', 'time', 'progress', 'predictedProgress', 'node', {live: true})");
+            session.run("CALL example.simpleRegression('node', 'time', 'cost', 'predictedCost', 'node', {live: true})");
+
+            //one transaction that changes a point of each model
+            session.run("MATCH (n:node {time:1.0}) SET n.progress = 1.0 WITH count(*) as c " +
+                    "MATCH (m:node {time:3.0}) SET m.cost = 6.3");
+
+            SimpleRegression progress = new SimpleRegression();
+            progress.addData(1.0, 1.0);
+            progress.addData(2.0, 2.596);
+            progress.addData(3.0, 3.259);
+            SimpleRegression cost = new SimpleRegression();
+            cost.addData(1.0, 2.0);
+            cost.addData(2.0, 4.5);
+            cost.addData(3.0, 6.3);
+
+            Record model = session.run("MATCH (n:LinReg {label:'node', depVar:'progress'}) " +
+                    "RETURN n.slope as slope, n.modelVersion as version").single();
+            assertEquals(progress.getSlope(), model.get("slope").asDouble(), 0.000000001);
+            assertTrue(model.get("version").isNull());
+            model = session.run("MATCH (n:LinReg {label:'node', depVar:'cost'}) RETURN n.slope as slope").single();
+            assertEquals(cost.getSlope(), model.get("slope").asDouble(), 0.000000001);
+        }
+    }
+
+    @Test
+    public void shouldNotMissChangesCommittedWhileLiveModelIsFitted() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("UNWIND range(1, 20000) AS i CREATE (:node {time:toFloat(i), progress:2.5 * i + (i % 7)})");
+            //points committed by another session while the model is fitted
+            ExecutorService writers = Executors.newSingleThreadExecutor();
+            Future<?> writes = writers.submit(() -> {
+                try (Session other = driver.session()) {
+                    for (int i = 20001; i <= 20200; i++) {
+                        other.run("CREATE (:node {time:toFloat($i), progress:2.5 * $i})",
+                                Collections.<String, Object>singletonMap("i", i)).consume();
+                    }
+                }
+            });
+            //and one point created by the calling transaction itself
+            session.run("CREATE (:node {time:0.5, progress:1.0}) WITH count(*) AS created " +
+                    "CALL example.simpleRegression('node', 'time', 'progress', 'predictedProgress', 'node', " +
+                    "{live: true, concurrency: 2}) YIELD written RETURN written").consume();
+            writes.get();
+            writers.shutdown();
+
+            SimpleRegression R = new SimpleRegression();
+            for (Record point : session.run("MATCH (n:node) RETURN n.time as time, n.progress as progress").list()) {
+                R.addData(point.get("time").asDouble(), point.get("progress").asDouble());
+            }
+            Record model = session.run("MATCH (n:LinReg {label:'node'}) " +
+                    "RETURN n.slope as slope, n.serializedModel as serializedModel").single();
+            assertEquals(20201, ModelFormat.readSimple(model.get("serializedModel").asByteArray()).getN());
+            assertEquals(R.getSlope(), model.get("slope").asDouble(), 0.000000001);
+        }
+    }
+
+    @Test
+    public void shouldStreamPredictionsWithoutWriting() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("CREATE (:node {time:1.0, progress:1.345}), (:node {time:2.0, progress:2.596}), " +
+                    "(:node {time:3.0, progress:3.259}), (:node {time:4.0}), (:node {time:5.0})");
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+
+            List<Record> predictions = session.run("CALL example.simpleRegression.stream('node', 'time', 'progress', 'node') " +
+                    "YIELD entity, x, predicted, residual RETURN entity, x, predicted, residual").list();
+            assertEquals(2, predictions.size());
+            for (Record prediction : predictions) {
+                assertThat(prediction.get("predicted").asDouble(), equalTo(R.predict(prediction.get("x").asDouble())));
+                assertTrue(prediction.get("residual").isNull());
+            }
+
+            predictions = session.run("CALL example.simpleRegression.stream('node', 'time', 'progress', 'node', " +
+                    "{residuals: true})").list();
+            assertEquals(5, predictions.size());
+            for (Record prediction : predictions) {
+                if (prediction.get("x").asDouble() == 2.0) {
+                    assertEquals(2.596 - R.predict(2.0), prediction.get("residual").asDouble(), 0.0);
+                }
+            }
+
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("modelQuery", "MATCH (n:node) WHERE exists(n.progress) RETURN n.time as time, n.progress as progress");
+            parameters.put("mapQuery", "MATCH (n:node) WHERE NOT exists(n.progress) RETURN n, n.time as time");
+            predictions = session.run("CALL example.customRegression.stream($modelQuery, $mapQuery)", parameters).list();
+            assertEquals(2, predictions.size());
+            for (Record prediction : predictions) {
+                assertThat(prediction.get("predicted").asDouble(), equalTo(R.predict(prediction.get("x").asDouble())));
+            }
+
+            //nothing was written
+            assertEquals(0, session.run("MATCH (n:node) WHERE exists(n.predictedProgress) RETURN count(n) as c")
+                    .single().get("c").asLong());
+            assertEquals(0, session.run("MATCH (n:LinReg) RETURN count(n) as c").single().get("c").asLong());
+
+            session.run("CALL example.customRegression($modelQuery, '', 'predictedProgress', 1)", parameters);
+            predictions = session.run("CALL example.predict.stream(1, $mapQuery)", parameters).list();
+            assertEquals(2, predictions.size());
+            for (Record prediction : predictions) {
+                assertThat(prediction.get("predicted").asDouble(), equalTo(R.predict(prediction.get("x").asDouble())));
+            }
+        }
+    }
+
+    @Test
+    public void shouldFitOneModelPerGroup() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("UNWIND range(1, 3) as x CREATE (:reading {store:1, x:x, y:2 * x + 1})");
+            session.run("UNWIND range(1, 2) as x CREATE (:reading {store:'a', x:x, y:-x})");
+            session.run("CREATE (:reading {store:3, x:1, y:1})");
+            session.run("CREATE (:reading {store:1, x:4}), (:reading {store:'a', x:5}), (:reading {store:3, x:2})");
+
+            Record counts = session.run("CALL example.groupedRegression('reading', 'store', 'x', 'y', 'predicted', 'node', " +
+                    "{batchSize: 1, concurrency: 2})").single();
+            assertEquals(3, counts.get("groups").asLong());
+            assertEquals(2, counts.get("models").asLong());
+            assertEquals(2, counts.get("written").asLong());
+            assertEquals(1, counts.get("skipped").asLong());
+
+            assertEquals(9.0, session.run("MATCH (n:reading {store:1, x:4}) RETURN n.predicted as p").single()
+                    .get("p").asDouble(), 0.000000001);
+            assertEquals(-5.0, session.run("MATCH (n:reading {store:'a', x:5}) RETURN n.predicted as p").single()
+                    .get("p").asDouble(), 0.000000001);
+
+            Record model = session.run("MATCH (n:LinReg:Grouped {group:1}) RETURN n.slope as slope, n.intercept as intercept").single();
+            assertEquals(2.0, model.get("slope").asDouble(), 0.000000001);
+            assertEquals(1.0, model.get("intercept").asDouble(), 0.000000001);
+            assertEquals(0, session.run("MATCH (n:LinReg:Grouped {group:3}) RETURN count(n) as c").single().get("c").asLong());
+        }
+    }
+
+    @Test
+    public void shouldExpirePointsOutsideWindow() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("UNWIND range(1, 5) as t CREATE (:sensor {ts:t, x:t, y:2 * t})");
+            Record window = session.run("CALL example.windowRegression('sensor', 'ts', 'x', 'y', 2, 1)").single();
+            assertEquals(3, window.get("n").asLong());
+            assertEquals(2.0, window.get("slope").asDouble(), 0.000000001);
+            assertEquals(3.0, window.get("oldest").asDouble(), 0.0);
+
+            //new points push the oldest ones out of the window
+            session.run("CREATE (:sensor {ts:6, x:6, y:18})");
+            session.run("CREATE (:sensor {ts:7, x:7, y:21}), (:other {ts:8, x:8, y:0})");
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(5.0, 10.0);
+            R.addData(6.0, 18.0);
+            R.addData(7.0, 21.0);
+
+            window = session.run("CALL example.windowRegression.current(1)").single();
+            assertEquals(3, window.get("n").asLong());
+            assertEquals(R.getSlope(), window.get("slope").asDouble(), 0.000000001);
+            assertEquals(R.getIntercept(), window.get("intercept").asDouble(), 0.000000001);
+            assertEquals(5.0, window.get("oldest").asDouble(), 0.0);
+            assertEquals(7.0, window.get("newest").asDouble(), 0.0);
+
+            //a point leaves the window with its node or label, and a changed node comes back with its new point
+            session.run("MATCH (n:sensor {ts:5}) DELETE n");
+            session.run("MATCH (n:sensor {ts:6}) SET n.y = 12");
+            session.run("MATCH (n:sensor {ts:7}) REMOVE n:sensor");
+            session.run("CREATE (:sensor {ts:8, x:8, y:24})");
+
+            window = session.run("CALL example.windowRegression.current(1)").single();
+            assertEquals(2, window.get("n").asLong());
+            assertEquals(6.0, window.get("slope").asDouble(), 0.000000001);
+            assertEquals(-24.0, window.get("intercept").asDouble(), 0.000000001);
+        }
+    }
+
+    @Test
+    public void shouldCrossValidateFromFoldSums() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("UNWIND range(1, 60) as x CREATE (:point {x:x, y:2 * x + 1 + ((x * 7) % 5 - 2) * 0.3})");
+
+            //replicate every fold by refitting on the other points and predicting the held-out ones
+            int k = 4;
+            List<Record> points = session.run("MATCH (n:point) RETURN id(n) as id, n.x as x, n.y as y").list();
+            SimpleRegression[] training = new SimpleRegression[k];
+            for (int fold = 0; fold < k; fold++) training[fold] = new SimpleRegression();
+            for (Record point : points) {
+                int fold = FoldAccumulator.fold(point.get("id").asLong(), k);
+                for (int other = 0; other < k; other++) {
+                    if (other != fold) training[other].addData(point.get("x").asDouble(), point.get("y").asDouble());
+                }
+            }
+            double[] sse = new double[k];
+            long[] testSize = new long[k];
+            for (Record point : points) {
+                int fold = FoldAccumulator.fold(point.get("id").asLong(), k);
+                double error = point.get("y").asDouble() - training[fold].predict(point.get("x").asDouble());
+                sse[fold] += error * error;
+                testSize[fold]++;
+            }
+
+            List<Record> folds = session.run("CALL example.crossValidateRegression('point', 'x', 'y', 'node', 4, " +
+                    "{concurrency: 2})").list();
+            assertEquals(k, folds.size());
+            for (Record fold : folds) {
+                int i = (int) fold.get("fold").asLong();
+                assertEquals(testSize[i], fold.get("testSize").asLong());
+                assertEquals(60 - testSize[i], fold.get("trainingSize").asLong());
+                assertEquals(training[i].getSlope(), fold.get("slope").asDouble(), 0.000000001);
+                assertEquals(Math.sqrt(sse[i] / testSize[i]), fold.get("rmse").asDouble(), 0.000000001);
+            }
+        }
+    }
+
+    @Test
+    public void shouldLeaveUndefinedFoldStatisticsNull() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            //as many folds as points, so hashing leaves some folds empty, and y never varies
+            session.run("UNWIND range(1, 8) as x CREATE (:point {x:x, y:3.0})");
+            int k = 8;
+            long[] testSize = new long[k];
+            for (Record point : session.run("MATCH (n:point) RETURN id(n) as id").list()) {
+                testSize[FoldAccumulator.fold(point.get("id").asLong(), k)]++;
+            }
+
+            List<Record> folds = session.run("CALL example.crossValidateRegression('point', 'x', 'y', 'node', 8)").list();
+            assertEquals(k, folds.size());
+            for (Record fold : folds) {
+                int i = (int) fold.get("fold").asLong();
+                assertEquals(testSize[i], fold.get("testSize").asLong());
+                assertEquals(0.0, fold.get("slope").asDouble(), 0.000000001);
+                if (testSize[i] == 0) {
+                    assertTrue(fold.get("rmse").isNull());
+                } else {
+                    assertEquals(0.0, fold.get("rmse").asDouble(), 0.000000001);
+                }
+                assertTrue(fold.get("rSquare").isNull());
+            }
+        }
+    }
+
+    @Test
+    public void shouldStopSamplingOnceConverged() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("UNWIND range(1, 1000) as x CREATE (:point {x:x, y:2 * x + 1 + ((x * 7) % 5 - 2) * 0.3})");
+
+            //with every entity sampled the first check already meets the tolerance, after the first points scanned
+            SimpleRegression R = new SimpleRegression();
+            for (int x = 1; x <= SampleAccumulator.CHECK_INTERVAL; x++) R.addData(x, 2 * x + 1 + ((x * 7) % 5 - 2) * 0.3);
+            Record converged = session.run("CALL example.simpleRegression.sample('point', 'x', 'y', 'node', " +
+                    "{sampleRate: 1.0, tolerance: 1.0})").single();
+            assertTrue(converged.get("converged").asBoolean());
+            assertEquals(SampleAccumulator.CHECK_INTERVAL, converged.get("sampleSize").asLong());
+            assertEquals(R.getSlope(), converged.get("slope").asDouble(), 0.000000001);
+            assertEquals(R.getSlopeConfidenceInterval(), converged.get("slopeError").asDouble(), 0.000000001);
+
+            Record sampled = session.run("CALL example.simpleRegression.sample('point', 'x', 'y', 'node', " +
+                    "{sampleRate: 0.5})").single();
+            assertFalse(sampled.get("converged").asBoolean());
+            assertEquals(1000, sampled.get("scanned").asLong());
+            assertTrue(sampled.get("sampleSize").asLong() > 400 && sampled.get("sampleSize").asLong() < 600);
+            assertEquals(2.0, sampled.get("slope").asDouble(), sampled.get("slopeError").asDouble());
+        }
+    }
+
+    @Test
+    public void shouldFitTransformedFeatures() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("UNWIND range(1, 20) AS i CREATE (:curve {x:toFloat(i), y:1.0 + 2.0 * i + 0.5 * i * i + 3.0 * log(i)})");
+            session.run("CREATE (:curve {x:25.0}), (:curve {x:-1.0})");
+            Record counts = session.run("CALL example.simpleRegression('curve', 'x', 'y', 'predictedY', 'node', " +
+                    "{degree: 2, transforms: ['log']})").single();
+            //a negative x has no log, so it can't be predicted
+            assertEquals(1, counts.get("written").asLong());
+
+            double predicted = session.run("MATCH (n:curve {x:25.0}) RETURN n.predictedY as predicted")
+                    .single().get("predicted").asDouble();
+            assertEquals(1.0 + 2.0 * 25 + 0.5 * 25 * 25 + 3.0 * Math.log(25), predicted, 0.000001);
+
+            Record model = session.run("MATCH (n:LinReg:Multiple {label:'curve'}) " +
+                    "RETURN n.terms as terms, n.coefficients as coefficients").single();
+            assertEquals(3, model.get("terms").size());
+            assertEquals("x^2", model.get("terms").get(1).asString());
+            assertEquals("log(x)", model.get("terms").get(2).asString());
+            assertEquals(0.5, model.get("coefficients").get(1).asDouble(), 0.000001);
+            assertEquals(3.0, model.get("coefficients").get(2).asDouble(), 0.000001);
+            assertFalse(session.run("MATCH (n:curve) WHERE exists(n.`x^2`) RETURN n").hasNext());
+        }
+    }
+
+    @Test
+    public void shouldCreateMultipleRegression() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+
+            session.run("UNWIND range(1, 20) AS i CREATE (:node {a:toFloat(i), b:toFloat(i % 5), c:toFloat(i * i % 7), " +
+                    "y:1.0 + 2.0 * i - 3.0 * (i % 5) + 0.5 * (i * i % 7)})");
+            session.run("CREATE (:node {a:30.0, b:2.0, c:4.0}), (:node {a:31.0, b:1.0})");
+            Record counts = session.run("CALL example.multipleRegression('node', ['a', 'b', 'c'], 'y', 'predictedY', 'node')")
+                    .single();
+            assertEquals(1, counts.get("written").asLong());
+
+            double predicted = session.run("MATCH (n:node {a:30.0}) RETURN n.predictedY as predicted")
+                    .single().get("predicted").asDouble();
+            assertEquals(1.0 + 2.0 * 30.0 - 3.0 * 2.0 + 0.5 * 4.0, predicted, 0.000001);
+
+            Record model = session.run("MATCH (n:LinReg:Multiple {label:'node', depVar:'y'}) " +
+                    "RETURN n.intercept as intercept, n.coefficients as coefficients, n.rSquare as rSquare").single();
+            assertEquals(1.0, model.get("intercept").asDouble(), 0.000001);
+            assertEquals(2.0, model.get("coefficients").get(0).asDouble(), 0.000001);
+            assertEquals(-3.0, model.get("coefficients").get(1).asDouble(), 0.000001);
+            assertEquals(0.5, model.get("coefficients").get(2).asDouble(), 0.000001);
+            assertEquals(1.0, model.get("rSquare").asDouble(), 0.000001);
         }
     }
 
@@ -136,16 +598,9 @@ public class LinearRegressionTest {
             assertEquals(model.get("intercept").asDouble(), R.getIntercept(), 0.00000000000001);
             assertEquals(model.get("slope").asDouble(), R.getSlope(), 0.00000000000001);
 
-            try (ByteArrayInputStream serializedModel = new ByteArrayInputStream(model.get("serializedModel").asByteArray());
-                 ObjectInput in = new ObjectInputStream(serializedModel)){
-
-                SimpleRegression o = (SimpleRegression) in.readObject();
-                assertEquals(model.get("intercept").asDouble(), o.getIntercept(), 0.00000000000001);
-                assertEquals(model.get("slope").asDouble(), o.getSlope(), 0.00000000000001);
-
-            } catch (IOException e) {
-                fail("error in deserialization");
-            }
+            SimpleLinearModel o = ModelFormat.readSimple(model.get("serializedModel").asByteArray());
+            assertEquals(model.get("intercept").asDouble(), o.getIntercept(), 0.00000000000001);
+            assertEquals(model.get("slope").asDouble(), o.getSlope(), 0.00000000000001);
 
         }
     }
@@ -194,20 +649,78 @@ public class LinearRegressionTest {
             assertEquals(model.get("intercept").asDouble(), R.getIntercept(), 0.00000000000001);
             assertEquals(model.get("slope").asDouble(), R.getSlope(), 0.00000000000001);
 
-            try (ByteArrayInputStream serializedModel = new ByteArrayInputStream(model.get("serializedModel").asByteArray());
-                 ObjectInput in = new ObjectInputStream(serializedModel)){
+            SimpleLinearModel o = ModelFormat.readSimple(model.get("serializedModel").asByteArray());
+            assertEquals(model.get("intercept").asDouble(), o.getIntercept(), 0.00000000000001);
+            assertEquals(model.get("slope").asDouble(), o.getSlope(), 0.00000000000001);
+
 
-                SimpleRegression o = (SimpleRegression) in.readObject();
-                assertEquals(model.get("intercept").asDouble(), o.getIntercept(), 0.00000000000001);
-                assertEquals(model.get("slope").asDouble(), o.getSlope(), 0.00000000000001);
+        }
+    }
+    @Test
+    public void shouldPipelineCustomRegressionPredictions() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+            session.run("CREATE (:Node {id:8}) - [:WORKS_FOR {time:'soon'}] -> (:Node {id:9})");
 
-            } catch (IOException e) {
-                fail("error in deserialization");
+            String modelQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND exists(r.progress) RETURN r.time as time, r.progress as progress";
+            String mapQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND NOT exists(r.progress) RETURN r, r.time as time";
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("modelQuery", modelQuery);
+            parameters.put("mapQuery", mapQuery);
+
+            Record counts = session.run("CALL example.customRegression($modelQuery, $mapQuery, 'predictedProgress', 1, " +
+                    "{batchSize: 1, concurrency: 2})", parameters).single();
+            assertEquals(2, counts.get("written").asLong());
+            assertEquals(1, counts.get("skipped").asLong());
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+
+            StatementResult result = session.run(gatherPredictedValues);
+            while (result.hasNext()) {
+                Record actual = result.next();
+                assertThat(actual.get("predictedProgress").asDouble(), equalTo(R.predict(actual.get("time").asDouble())));
             }
+        }
+    }
+
+    @Test
+    public void shouldReadMappedValuesInWorkers() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+            session.run("CREATE (:Node {id:8}) - [:WORKS_FOR {time:'soon'}] -> (:Node {id:9})");
+
+            String modelQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND exists(r.progress) RETURN r.time as time, r.progress as progress";
+            //only the entities, their x values are read by the workers that predict them
+            String mapQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE NOT exists(r.progress) RETURN r";
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("modelQuery", modelQuery);
+            parameters.put("mapQuery", mapQuery);
 
+            Record counts = session.run("CALL example.customRegression($modelQuery, $mapQuery, 'predictedProgress', 1, " +
+                    "{batchSize: 1, concurrency: 2, indVar: 'time'})", parameters).single();
+            assertEquals(2, counts.get("written").asLong());
+            assertEquals(1, counts.get("skipped").asLong());
 
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+
+            StatementResult result = session.run(gatherPredictedValues);
+            while (result.hasNext()) {
+                Record actual = result.next();
+                assertThat(actual.get("predictedProgress").asDouble(), equalTo(R.predict(actual.get("time").asDouble())));
+            }
         }
     }
+
     /* This tests the three input queries for updateRegression. Clearly you would actually want to run all three of these in one
     call to updateRegression so as to de serialize and serialize the model once rather than 3 times, but in the test I want to make
     sure each functions correctly individually.
@@ -274,5 +787,487 @@ public class LinearRegressionTest {
 
         }
     }
+
+    @Test
+    public void shouldReuseCachedModelUntilNodeChanges() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+
+            String modelQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND exists(r.progress) RETURN r.time as time, r.progress as progress";
+            String mapQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND NOT exists(r.progress) RETURN r, r.time as time";
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("modelQuery", modelQuery);
+            parameters.put("mapQuery", mapQuery);
+            session.run("CALL example.customRegression($modelQuery, $mapQuery, 'predictedProgress', 1)", parameters);
+
+            //both updates find the model they need in the cache
+            session.run("CALL example.updateRegression('', '', $mapQuery, 'predictedProgress', 1)", parameters);
+            session.run("CALL example.updateRegression('', '', $mapQuery, 'predictedProgress', 1)", parameters);
+            Record stats = session.run("CALL example.regression.cacheStats()").single();
+            assertEquals(2, stats.get("hits").asLong());
+            assertEquals(0, stats.get("misses").asLong());
+
+            //a change made outside the procedures drops the cached model
+            session.run("MATCH (n:LinReg {ID:1}) SET n.note = 'changed'");
+            session.run("CALL example.updateRegression('', '', $mapQuery, 'predictedProgress', 1)", parameters);
+            stats = session.run("CALL example.regression.cacheStats()").single();
+            assertEquals(2, stats.get("hits").asLong());
+            assertEquals(1, stats.get("misses").asLong());
+            assertEquals(1, stats.get("invalidations").asLong());
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+
+            StatementResult result = session.run(gatherPredictedValues);
+            while (result.hasNext()) {
+                Record actual = result.next();
+                assertThat(actual.get("predictedProgress").asDouble(), equalTo(R.predict(actual.get("time").asDouble())));
+            }
+        }
+    }
+
+    @Test
+    public void shouldAppendEmptyModel() {
+        //an update that only removes points appends an empty model, which must not turn sums far from 0 into NaN
+        SimpleLinearModel R = new SimpleLinearModel();
+        R.addData(1e155, 1.0);
+        R.addData(1.00001e155, 3.0);
+        R.append(new SimpleLinearModel());
+        assertEquals(2, R.getN());
+        assertEquals(2e-150, R.getSlope(), 1e-158);
+    }
+
+    @Test
+    public void shouldMigrateJavaSerializedModel() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+
+            //a model stored the way earlier versions did
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+            byte[] legacy;
+            try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                 ObjectOutput out = new ObjectOutputStream(bytes)) {
+                out.writeObject(R);
+                out.flush();
+                legacy = bytes.toByteArray();
+            }
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("legacy", legacy);
+            session.run("CREATE (:LinReg:Custom {ID:1, serializedModel:$legacy})", parameters);
+
+            parameters.put("mapQuery", "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND NOT exists(r.progress) RETURN r, r.time as time");
+            session.run("CALL example.updateRegression('', '', $mapQuery, 'predictedProgress', 1)", parameters);
+
+            StatementResult result = session.run(gatherPredictedValues);
+            while (result.hasNext()) {
+                Record actual = result.next();
+                assertThat(actual.get("predictedProgress").asDouble(), equalTo(R.predict(actual.get("time").asDouble())));
+            }
+
+            //the model is written back in the compact format
+            byte[] stored = session.run("MATCH (n:LinReg {ID:1}) RETURN n.serializedModel as serializedModel").single()
+                    .get("serializedModel").asByteArray();
+            assertEquals(ModelFormat.VERSION, stored[0]);
+            assertTrue(stored.length < legacy.length);
+            SimpleLinearModel migrated = ModelFormat.readSimple(stored);
+            assertEquals(3, migrated.getN());
+            assertThat(migrated.getSlope(), equalTo(R.getSlope()));
+            assertThat(migrated.getIntercept(), equalTo(R.getIntercept()));
+        }
+    }
+
+    @Test
+    public void shouldPredictWithStoredModel() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+
+            String modelQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND exists(r.progress) RETURN r.time as time, r.progress as progress";
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("modelQuery", modelQuery);
+            session.run("CALL example.customRegression($modelQuery, '', 'predictedProgress', 1)", parameters);
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+
+            List<Object> predicted = session.run("RETURN example.predictBatch(1, [4.0, 5, 6.5]) as ys").single()
+                    .get("ys").asList();
+            assertEquals(3, predicted.size());
+            assertEquals(R.predict(4.0), (Double) predicted.get(0), 0.0);
+            assertEquals(R.predict(5.0), (Double) predicted.get(1), 0.0);
+            assertEquals(R.predict(6.5), (Double) predicted.get(2), 0.0);
+
+            StatementResult result = session.run("UNWIND [4.0, 5.0] as x RETURN x, example.predictWithModel(1, x) as y");
+            while (result.hasNext()) {
+                Record actual = result.next();
+                assertThat(actual.get("y").asDouble(), equalTo(R.predict(actual.get("x").asDouble())));
+            }
+        }
+    }
+
+    @Test
+    public void shouldDropDuplicateRows() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+
+            //every relationship is returned once per node in the graph
+            String modelQuery = "MATCH () - [r:WORKS_FOR] -> (), (other:Node) WHERE exists(r.time) AND exists(r.progress) " +
+                    "RETURN r.time as time, r.progress as progress, r";
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("modelQuery", modelQuery);
+            session.run("CALL example.customRegression($modelQuery, '', 'predictedProgress', 1, {distinct: true})",
+                    parameters);
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+
+            Record model = session.run("MATCH (n:LinReg {ID:1}) RETURN n.slope as slope, n.intercept as intercept")
+                    .single();
+            assertEquals(R.getSlope(), model.get("slope").asDouble(), 0.000000001);
+            assertEquals(R.getIntercept(), model.get("intercept").asDouble(), 0.000000001);
+        }
+    }
+
+    @Test
+    public void shouldRecordRunMetrics() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+            session.run("CREATE (:Node {id:8}) - [:WORKS_FOR {time:'six', progress:6.0}] -> (:Node {id:9})");
+
+            session.run("CALL example.simpleRegression('WORKS_FOR', 'time', 'progress', 'predictedProgress', " +
+                    "'relationship')");
+
+            Record run = session.run("CALL example.regression.metrics()").list().get(0);
+            assertEquals("example.simpleRegression", run.get("procedure").asString());
+            assertTrue(run.get("succeeded").asBoolean());
+            assertEquals(6, run.get("scanned").asLong());
+            assertEquals(1, run.get("rejected").asLong());
+            assertEquals(2, run.get("written").asLong());
+            assertEquals(ModelFormat.write(new SimpleLinearModel()).length, run.get("bytesSerialized").asLong());
+            assertTrue(run.get("totalMillis").asDouble() >= run.get("scanMillis").asDouble());
+
+            session.run("CALL example.crossValidateRegression('WORKS_FOR', 'time', 'progress', 'relationship', 2)").list();
+            run = session.run("CALL example.regression.metrics()").list().get(0);
+            assertEquals("example.crossValidateRegression", run.get("procedure").asString());
+            assertEquals(6, run.get("scanned").asLong());
+            assertEquals(1, run.get("rejected").asLong());
+
+            Object runs = ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(new ObjectName("example.regression:type=Metrics"), "Runs");
+            assertTrue((Long) runs >= 1);
+        }
+    }
+
+    @Test
+    public void shouldRunRegressionAsBackgroundJob() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+
+            HashMap<String, Object> arguments = new HashMap<>();
+            arguments.put("label", "WORKS_FOR");
+            arguments.put("indVar", "time");
+            arguments.put("depVar", "progress");
+            arguments.put("newVarName", "predictedProgress");
+            arguments.put("dataSource", "relationship");
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("arguments", arguments);
+            long jobID = session.run("CALL example.regression.submit('simpleRegression', $arguments, {batchSize: 1})",
+                    parameters).single().get("jobID").asLong();
+
+            parameters.put("jobID", jobID);
+            Record status = session.run("CALL example.regression.status($jobID)", parameters).single();
+            for (int i = 0; i < 100 && !status.get("phase").asString().equals("done"); i++) {
+                Thread.sleep(100);
+                status = session.run("CALL example.regression.status($jobID)", parameters).single();
+            }
+            assertEquals("SUCCEEDED", status.get("state").asString());
+            assertEquals(5, status.get("scanned").asLong());
+            assertEquals(5, status.get("toScan").asLong());
+            assertEquals(2, status.get("written").asLong());
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+            StatementResult predictions = session.run("MATCH () - [r:WORKS_FOR] -> () WHERE NOT exists(r.progress) " +
+                    "RETURN r.time as time, r.predictedProgress as predicted");
+            while (predictions.hasNext()) {
+                Record actual = predictions.next();
+                assertThat(actual.get("predicted").asDouble(), equalTo(R.predict(actual.get("time").asDouble())));
+            }
+            assertEquals(1, session.run("MATCH (n:LinReg {label:'WORKS_FOR'}) RETURN n").list().size());
+
+            //a finished job stays finished
+            assertEquals("SUCCEEDED", session.run("CALL example.regression.cancel($jobID)", parameters).single()
+                    .get("state").asString());
+
+            //options a job can't honour are refused up front
+            try {
+                session.run("CALL example.regression.submit('simpleRegression', $arguments, {degree: 2})", parameters)
+                        .consume();
+                fail("the job should have been refused");
+            } catch (Exception e) {
+                assertTrue(e.getMessage().contains("degree or transforms"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldSkipUnchangedPredictions() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+
+            String modelQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND exists(r.progress) RETURN r.time as time, r.progress as progress";
+            String mapQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND NOT exists(r.progress) RETURN r, r.time as time";
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("modelQuery", modelQuery);
+            parameters.put("mapQuery", mapQuery);
+            session.run("CALL example.customRegression($modelQuery, $mapQuery, 'predictedProgress', 1)", parameters);
+
+            //the model hasn't changed, so remapping finds every stored prediction within epsilon
+            Record result = session.run("CALL example.updateRegression('', '', $mapQuery, 'predictedProgress', 1, " +
+                    "{epsilon: 0.001})", parameters).single();
+            assertEquals(0, result.get("written").asLong());
+            assertEquals(2, result.get("unchanged").asLong());
+
+            //a new point moves the predictions by more than the tolerance
+            session.run("MATCH (n7:Node {id:7}) MERGE (n7)-[:WORKS_FOR {time:6.0, progress:5.870}]->(:Node {id:8})");
+            String updateQuery = "MATCH (:Node {id:7})-[r:WORKS_FOR]->(:Node {id:8}) RETURN r.time as time, r.progress as progress";
+            parameters.put("updateQuery", updateQuery);
+            result = session.run("CALL example.updateRegression('', $updateQuery, $mapQuery, 'predictedProgress', 1, " +
+                    "{relativeEpsilon: 0.001, batchSize: 1})", parameters).single();
+            assertEquals(2, result.get("written").asLong());
+            assertEquals(0, result.get("unchanged").asLong());
+        }
+    }
+
+    @Test
+    public void shouldNotLoseConcurrentUpdates() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            String modelQuery = "MATCH () - [r:WORKS_FOR] -> () WHERE exists(r.time) AND exists(r.progress) RETURN r.time as time, r.progress as progress";
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("modelQuery", modelQuery);
+            session.run("CALL example.customRegression($modelQuery, '', 'predictedProgress', 1)", parameters);
+
+            //every update adds its own point to the same model at the same time
+            int updates = 8;
+            ExecutorService pool = Executors.newFixedThreadPool(updates);
+            try {
+                List<Future<?>> running = new ArrayList<>();
+                for (int i = 0; i < updates; i++) {
+                    double time = 10 + i;
+                    running.add(pool.submit(() -> {
+                        try (Session update = driver.session()) {
+                            update.run("CALL example.updateRegression('', 'RETURN " + time + " as time, " + (time * 1.1) +
+                                    " as progress', '', 'predictedProgress', 1)").consume();
+                        }
+                    }));
+                }
+                for (Future<?> update : running) update.get();
+            } finally {
+                pool.shutdown();
+            }
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+            for (int i = 0; i < updates; i++) R.addData(10 + i, (10 + i) * 1.1);
+            Record model = session.run("MATCH (n:LinReg {ID:1}) RETURN n.slope as slope, n.intercept as intercept, " +
+                    "n.modelVersion as version").single();
+            assertEquals(R.getSlope(), model.get("slope").asDouble(), 0.000001);
+            assertEquals(R.getIntercept(), model.get("intercept").asDouble(), 0.000001);
+            assertEquals(updates, model.get("version").asLong());
+
+            //an update whose map query fails is rolled back with the rest of its transaction
+            try {
+                session.run("CALL example.updateRegression('', 'RETURN 30.0 as time, 33.0 as progress', " +
+                        "'MATCH (n RETURN n', 'predictedProgress', 1)").consume();
+                fail("the map query should have failed");
+            } catch (Exception e) {
+                assertTrue(e.getMessage().contains("invalid mapQuery"));
+            }
+            model = session.run("MATCH (n:LinReg {ID:1}) RETURN n.slope as slope, n.modelVersion as version").single();
+            assertEquals(R.getSlope(), model.get("slope").asDouble(), 0.000001);
+            assertEquals(updates, model.get("version").asLong());
+        }
+    }
+
+    @Test
+    public void shouldUpdateModelCreatedInSameTransaction() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            SimpleLinearModel stored = new SimpleLinearModel();
+            stored.addData(1.0, 1.345);
+            stored.addData(2.0, 2.596);
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("model", ModelFormat.write(stored));
+
+            //the model node isn't committed yet when the update merges into it
+            try (Transaction tx = session.beginTransaction()) {
+                tx.run("CREATE (:LinReg:Custom {ID:1, serializedModel:$model, modelVersion:0})", parameters);
+                tx.run("CALL example.updateRegression('', 'RETURN 3.0 as time, 3.259 as progress', '', " +
+                        "'predictedProgress', 1)").consume();
+                tx.success();
+            }
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+            Record model = session.run("MATCH (n:LinReg {ID:1}) RETURN n.slope as slope, n.intercept as intercept")
+                    .single();
+            assertEquals(R.getSlope(), model.get("slope").asDouble(), 0.000000001);
+            assertEquals(R.getIntercept(), model.get("intercept").asDouble(), 0.000000001);
+        }
+    }
+
+    @Test
+    public void shouldEstimateRegression() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+
+            HashMap<String, Object> arguments = new HashMap<>();
+            arguments.put("label", "WORKS_FOR");
+            arguments.put("indVar", "time");
+            arguments.put("depVar", "progress");
+            arguments.put("newVarName", "predictedProgress");
+            arguments.put("dataSource", "relationship");
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("arguments", arguments);
+            Record estimate = session.run("CALL example.regression.estimate('simpleRegression', $arguments)",
+                    parameters).single();
+            assertEquals(5, estimate.get("rowsToScan").asLong());
+            assertEquals(2, estimate.get("rowsToWrite").asLong());
+            assertEquals(5, estimate.get("sampled").asLong());
+            assertTrue(estimate.get("peakHeapBytes").asLong() > 0);
+            assertTrue(estimate.get("withinBudget").asBoolean());
+
+            estimate = session.run("CALL example.regression.estimate('simpleRegression', $arguments, {heapBudget: 1})",
+                    parameters).single();
+            assertFalse(estimate.get("withinBudget").asBoolean());
+            assertFalse(estimate.get("warning").isNull());
+
+            //enforced, the regression refuses to run and writes nothing
+            try {
+                session.run("CALL example.simpleRegression('WORKS_FOR', 'time', 'progress', 'predictedProgress', " +
+                        "'relationship', {heapBudget: 1, enforceBudget: true})").consume();
+                fail("the regression should have been refused");
+            } catch (Exception e) {
+                assertTrue(e.getMessage().contains("refused"));
+            }
+            assertEquals(0, session.run("MATCH (n:LinReg) RETURN count(n) as count").single().get("count").asLong());
+
+            //a query that writes is estimated from its plan and never run
+            HashMap<String, Object> custom = new HashMap<>();
+            custom.put("modelQuery", "CREATE (m:Marker) RETURN 1.0 as time, 2.0 as progress");
+            parameters.put("custom", custom);
+            estimate = session.run("CALL example.regression.estimate('customRegression', $custom)", parameters).single();
+            assertEquals(0, estimate.get("sampled").asLong());
+            assertEquals(0, session.run("MATCH (m:Marker) RETURN count(m) as count").single().get("count").asLong());
+
+            //nor run twice when the regression checks its budget first
+            custom.put("modelQuery", "UNWIND [1.0, 2.0, 3.0] AS t CREATE (m:Marker) RETURN t as time, t * 2 as progress");
+            session.run("CALL example.customRegression($custom.modelQuery, '', 'predictedProgress', 5, " +
+                    "{enforceBudget: true})", parameters).consume();
+            assertEquals(3, session.run("MATCH (m:Marker) RETURN count(m) as count").single().get("count").asLong());
+        }
+    }
+
+    @Test
+    public void shouldFitFromSnapshot() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            session.run(createKnownRelationships);
+            session.run(createUnknownRelationships);
+
+            Record loaded = session.run("CALL example.snapshot.load('work', 'WORKS_FOR', ['time', 'progress'], " +
+                    "'relationship', {offHeap: true})").single();
+            assertEquals(5, loaded.get("rows").asLong());
+            assertEquals(5 * 3 * 8, loaded.get("bytes").asLong());
+
+            //the store changes after the snapshot was taken, the snapshot doesn't
+            session.run("MATCH (n7:Node {id:7}) MERGE (n7)-[:WORKS_FOR {time:6.0, progress:5.870}]->(:Node {id:8})");
+
+            Record result = session.run("CALL example.snapshot.regression('work', 'time', 'progress', " +
+                    "'predictedProgress')").single();
+            assertEquals(2, result.get("written").asLong());
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+            HashMap<Double, Double> expected = new HashMap<>();
+            expected.put(4.0, R.predict(4.0));
+            expected.put(5.0, R.predict(5.0));
+            StatementResult predicted = session.run(gatherPredictedValues);
+            while (predicted.hasNext()) {
+                Record actual = predicted.next();
+                assertEquals(expected.get(actual.get("time").asDouble()), actual.get("predictedProgress").asDouble(),
+                        0.000001);
+            }
+
+            List<Record> folds = session.run("CALL example.snapshot.crossValidate('work', 'time', 'progress', 3)").list();
+            assertEquals(3, folds.size());
+            long tested = 0;
+            for (Record fold : folds) tested += fold.get("testSize").asLong();
+            assertEquals(3, tested);
+
+            session.run("MATCH (n:LinReg) SET n.ID = 1");
+            List<Record> predictions = session.run("CALL example.snapshot.predict('work', 1, 'time', 'progress')").list();
+            assertEquals(5, predictions.size());
+
+            session.run("CALL example.snapshot.drop('work')");
+            assertEquals(0, session.run("CALL example.snapshot.list()").list().size());
+        }
+    }
+
+    @Test
+    public void shouldVisitEachRelationshipOnce() throws Throwable {
+        try (Driver driver = GraphDatabase.driver(neo4j.boltURI(), Config.build().withoutEncryption().toConfig());
+             Session session = driver.session()) {
+            //an undirected match would return the self-loops once and the other relationships twice
+            session.run("CREATE (a:Node {id:1})-[:WORKS_FOR {time:1.0, progress:1.345}]->(b:Node {id:2}), " +
+                    "(b)-[:WORKS_FOR {time:2.0, progress:2.596}]->(b), " +
+                    "(b)-[:WORKS_FOR {time:3.0, progress:3.259}]->(a), " +
+                    "(a)-[:WORKS_FOR {time:4.0}]->(a), (a)-[:WORKS_FOR {time:5.0}]->(b)");
+
+            Record result = session.run("CALL example.simpleRegression('WORKS_FOR', 'time', 'progress', " +
+                    "'predictedProgress', 'relationship')").single();
+            assertEquals(2, result.get("written").asLong());
+
+            SimpleRegression R = new SimpleRegression();
+            R.addData(1.0, 1.345);
+            R.addData(2.0, 2.596);
+            R.addData(3.0, 3.259);
+            Record model = session.run("MATCH (n:LinReg) RETURN n.slope as slope, n.intercept as intercept").single();
+            assertEquals(R.getSlope(), model.get("slope").asDouble(), 0.000001);
+            assertEquals(R.getIntercept(), model.get("intercept").asDouble(), 0.000001);
+        }
+    }
 }
 